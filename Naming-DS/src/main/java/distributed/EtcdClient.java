@@ -1,15 +1,39 @@
 package distributed;
+import org.json.JSONArray;
 import org.json.JSONObject;
+import org.json.JSONTokener;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
+// Talks to etcd's v3 JSON gateway. Connections are kept alive between calls: HttpURLConnection
+// hands its socket back to the JVM's keep-alive cache once a response has been read to the end
+// and its stream closed, so calls never disconnect() and always drain the body, error or not.
 public class EtcdClient {
+    private static final int CONNECT_TIMEOUT_MILLIS = 3000;
+    private static final int READ_TIMEOUT_MILLIS = 5000;
+    private static final int BUFFER_SIZE = 8192;
+
     private String etcdAddress;
+    private final URL putUrl;
+    private final URL rangeUrl;
+    private final URL txnUrl;
+    private final URL watchUrl;
+    private final URL leaseGrantUrl;
+    private final URL leaseKeepAliveUrl;
+    private final URL leaseRevokeUrl;
 
     public EtcdClient(String etcdAddress) throws IOException {
         // Ensure the address has http:// protocol
@@ -18,52 +42,199 @@ public class EtcdClient {
         } else {
             this.etcdAddress = etcdAddress;
         }
+        this.putUrl = new URL(this.etcdAddress + "/v3/kv/put");
+        this.rangeUrl = new URL(this.etcdAddress + "/v3/kv/range");
+        this.txnUrl = new URL(this.etcdAddress + "/v3/kv/txn");
+        this.watchUrl = new URL(this.etcdAddress + "/v3/watch");
+        this.leaseGrantUrl = new URL(this.etcdAddress + "/v3/lease/grant");
+        this.leaseKeepAliveUrl = new URL(this.etcdAddress + "/v3/lease/keepalive");
+        this.leaseRevokeUrl = new URL(this.etcdAddress + "/v3/lease/revoke");
     }
 
     public void put(String key, String value) throws IOException {
+        put(key, value, 0);
+    }
+
+    // With a lease other than 0 the key is deleted when the lease expires or is revoked
+    public void put(String key, String value, long leaseId) throws IOException {
         System.out.println("Putting Key=" + key + ", Value=" + value);
-        String putUrl = etcdAddress + "/v3/kv/put";
-        String serverResponse = callEtcd(putUrl, buildPutRequestPayload(key, value));
+        JSONObject putRequest = new JSONObject(buildPutRequestPayload(key, value));
+        if (leaseId != 0) {
+            putRequest.put("lease", Long.toString(leaseId));
+        }
+        String serverResponse = callEtcd(putUrl, putRequest.toString());
         System.out.println(serverResponse);
     }
 
+    // A new lease that expires ttlSeconds from now unless kept alive; returns its id
+    public long grantLease(long ttlSeconds) throws IOException {
+        JSONObject response = new JSONObject(callEtcd(leaseGrantUrl, new JSONObject()
+                .put("TTL", Long.toString(ttlSeconds))
+                .toString()));
+        if (response.has("error") && !response.optString("error").isEmpty()) {
+            throw new IOException("etcd refused a lease: " + response.getString("error"));
+        }
+        // int64 fields come back as strings
+        return Long.parseLong(response.get("ID").toString());
+    }
+
+    // Renews the lease; returns the seconds it now has left, or 0 if it has already expired
+    public long keepAlive(long leaseId) throws IOException {
+        JSONObject response = new JSONObject(callEtcd(leaseKeepAliveUrl, new JSONObject()
+                .put("ID", Long.toString(leaseId))
+                .toString()));
+        JSONObject result = response.optJSONObject("result");
+        // An expired lease comes back without a TTL
+        return result == null ? 0 : result.optLong("TTL", 0);
+    }
+
+    // Ends the lease now, deleting every key attached to it
+    public void revokeLease(long leaseId) throws IOException {
+        callEtcd(leaseRevokeUrl, new JSONObject().put("ID", Long.toString(leaseId)).toString());
+    }
+
+    // Deletes the key only while it still holds value, so one that another client has since put
+    // its own value under is left alone. Returns whether it was deleted.
+    public boolean deleteIfValue(String key, String value) throws IOException {
+        System.out.println("Deleting Key=" + key);
+        String keyEncoded = Base64.getEncoder().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+        String valueEncoded = Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+        JSONObject txnRequest = new JSONObject()
+                .put("compare", new JSONArray().put(new JSONObject()
+                        .put("key", keyEncoded)
+                        .put("target", "VALUE")
+                        .put("result", "EQUAL")
+                        .put("value", valueEncoded)))
+                .put("success", new JSONArray().put(new JSONObject()
+                        .put("requestDeleteRange", new JSONObject().put("key", keyEncoded))));
+        // A false outcome is left out, as proto3 leaves out every default
+        return new JSONObject(callEtcd(txnUrl, txnRequest.toString())).optBoolean("succeeded", false);
+    }
+
+    // Not logged: lookups are frequent, and the caller logs what it is looking for
     public String get(String key) throws IOException {
-        System.out.println("Getting value for Key=" + key);
-        String getUrl = etcdAddress + "/v3/kv/range";
-        String serverResponse = callEtcd(getUrl, buildGetRequestPayload(key));
-        return serverResponse;
+        return callEtcd(rangeUrl, buildGetRequestPayload(key));
+    }
+
+    // Every key starting with prefix
+    public String getPrefix(String prefix) throws IOException {
+        return callEtcd(rangeUrl, buildRangeRequestPayload(prefix));
+    }
+
+    // Streams changes to every key from here on, on a thread of its own. Each message etcd sends
+    // (the watch being created, then batches of events) is passed to onMessage as its "result"
+    // object; onClosed gets the error, or null, once the stream ends. Closing the returned handle
+    // ends the stream.
+    //
+    // Sent as HTTP/1.0 over a plain socket: the response is then delimited by the connection
+    // closing rather than chunked, and closing the socket is a cancel that works even while the
+    // stream is quiet, which disconnecting an HttpURLConnection mid-body is not.
+    public Closeable watchAll(Consumer<JSONObject> onMessage, Consumer<IOException> onClosed) {
+        // "\0" to "\0" is etcd's way of asking for every key
+        String allKeys = Base64.getEncoder().encodeToString(new byte[]{0});
+        byte[] payload = new JSONObject()
+                .put("create_request", new JSONObject().put("key", allKeys).put("range_end", allKeys))
+                .toString()
+                .getBytes(StandardCharsets.UTF_8);
+        Socket socket = new Socket();
+        AtomicBoolean closed = new AtomicBoolean(false);
+        Thread thread = new Thread(() -> {
+            IOException failure = null;
+            try {
+                int port = watchUrl.getPort() != -1 ? watchUrl.getPort() : watchUrl.getDefaultPort();
+                socket.connect(new InetSocketAddress(watchUrl.getHost(), port), CONNECT_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                String request = "POST " + watchUrl.getPath() + " HTTP/1.0\r\n"
+                        + "Host: " + watchUrl.getHost() + ":" + port + "\r\n"
+                        + "Content-Type: application/json; charset=UTF-8\r\n"
+                        + "Content-Length: " + payload.length + "\r\n\r\n";
+                OutputStream outputStream = socket.getOutputStream();
+                outputStream.write(request.getBytes(StandardCharsets.US_ASCII));
+                outputStream.write(payload);
+                outputStream.flush();
+                BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        socket.getInputStream(), StandardCharsets.UTF_8), BUFFER_SIZE);
+                String statusLine = reader.readLine();
+                if (statusLine == null || !statusLine.matches("HTTP/1\\.\\d 200.*")) {
+                    throw new IOException("etcd refused the watch: " + statusLine);
+                }
+                String header = reader.readLine();
+                while (header != null && !header.isEmpty()) {
+                    header = reader.readLine();
+                }
+                // Messages are parsed off the stream as they arrive, one JSON object each
+                JSONTokener tokener = new JSONTokener(reader);
+                while (tokener.nextClean() != 0) {
+                    tokener.back();
+                    Object message = tokener.nextValue();
+                    if (message instanceof JSONObject && ((JSONObject) message).has("result")) {
+                        onMessage.accept(((JSONObject) message).getJSONObject("result"));
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                // Malformed JSON, or the socket was closed under the tokener
+                failure = new IOException(e.getMessage(), e);
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException ignore) {
+                }
+            }
+            onClosed.accept(closed.get() ? null : failure);
+        }, "etcd-watch");
+        thread.setDaemon(true);
+        thread.start();
+        return () -> {
+            closed.set(true);
+            socket.close();
+        };
     }
 
-    private String callEtcd(String url, String payload) throws IOException {
-        URL etcdUrl = new URL(url);
-        HttpURLConnection connection = (HttpURLConnection) etcdUrl.openConnection();
+    private String callEtcd(URL url, String payload) throws IOException {
+        byte[] body = payload.getBytes(StandardCharsets.UTF_8);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
         connection.setRequestMethod("POST");
         connection.setDoOutput(true);
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        // Left buffered rather than streamed, so headers and body go out in a single write
+        // instead of two small segments that Nagle's algorithm would hold apart
         connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
-        connection.connect();
-        OutputStream outputStream = connection.getOutputStream();
-        outputStream.write(payload.getBytes(StandardCharsets.UTF_8));
-        InputStream inputStream = connection.getInputStream();
-        String serverResponse = readResponse(inputStream);
-        inputStream.close();
-        outputStream.close();
-        connection.disconnect();
-        return serverResponse;
+        try (OutputStream outputStream = connection.getOutputStream()) {
+            outputStream.write(body);
+        }
+        int status = connection.getResponseCode();
+        if (status >= 400) {
+            InputStream errorStream = connection.getErrorStream();
+            String error = "";
+            if (errorStream != null) {
+                try (InputStream in = errorStream) {
+                    error = readResponse(in);
+                }
+            }
+            throw new IOException("etcd returned HTTP " + status + " for " + url + ": " + error);
+        }
+        try (InputStream inputStream = connection.getInputStream()) {
+            return readResponse(inputStream);
+        }
     }
 
+    // Reads the body in blocks and decodes it as UTF-8 once at the end
     private String readResponse(InputStream inputStream) throws IOException {
-        StringBuilder builder = new StringBuilder();
-        int character = inputStream.read();
-        while (character != -1) {
-            builder.append((char) character);
-            character = inputStream.read();
+        ByteArrayOutputStream body = new ByteArrayOutputStream(BUFFER_SIZE);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            body.write(buffer, 0, read);
         }
-        return builder.toString();
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
     }
 
     private String buildPutRequestPayload(String key, String value) {
-        String keyEncoded = Base64.getEncoder().encodeToString(key.getBytes());
-        String valueEncoded = Base64.getEncoder().encodeToString(value.getBytes());
+        String keyEncoded = Base64.getEncoder().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+        String valueEncoded = Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8));
         JSONObject putRequest = new JSONObject();
         putRequest.put("key", keyEncoded);
         putRequest.put("value", valueEncoded);
@@ -71,10 +242,21 @@ public class EtcdClient {
     }
 
     private String buildGetRequestPayload(String key) {
-        String keyEncoded = Base64.getEncoder().encodeToString(key.getBytes());
+        String keyEncoded = Base64.getEncoder().encodeToString(key.getBytes(StandardCharsets.UTF_8));
         JSONObject putRequest = new JSONObject();
         putRequest.put("key", keyEncoded);
         return putRequest.toString();
     }
 
+    // etcd selects [key, range_end); the end is the prefix with its last byte incremented
+    private String buildRangeRequestPayload(String prefix) {
+        byte[] key = prefix.getBytes(StandardCharsets.UTF_8);
+        byte[] rangeEnd = key.clone();
+        rangeEnd[rangeEnd.length - 1]++;
+        JSONObject rangeRequest = new JSONObject();
+        rangeRequest.put("key", Base64.getEncoder().encodeToString(key));
+        rangeRequest.put("range_end", Base64.getEncoder().encodeToString(rangeEnd));
+        return rangeRequest.toString();
+    }
+
 }
@@ -1,18 +1,333 @@
 package distributed;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+// Lookups are answered from a local cache while a watch on etcd is up. Every change etcd reports
+// drops the cached answers it touches, so the cache is as fresh as the watch and a steady state
+// costs no reads at all; the TTL only bounds the damage if an event were ever missed. While the
+// watch is down nothing is cached and every lookup goes to etcd.
+//
+// Registrations are tied to a lease that a background thread keeps alive, so a server that dies
+// drops out of etcd within LEASE_TTL_SECONDS and clients stop being handed its address. close()
+// revokes the lease, removing the registrations at once.
 public class NameServiceClient {
+    private static final long LEASE_TTL_SECONDS = 10;
+    private static final long CACHE_TTL_MILLIS = 30_000;
+    private static final long RETRY_DELAY_MILLIS = 3000;
+    private static final long WATCH_RETRY_MILLIS = 1000;
+    private static final String KEY_ENTRY = "key:";
+    private static final String PREFIX_ENTRY = "prefix:";
 
     private EtcdClient etcdClient;
+    private final Map<String, CachedResponse> cache = new ConcurrentHashMap<>();
+    // Notified on every change etcd reports, and whenever the watch starts or stops
+    private final Object changes = new Object();
+    // Guarded by changes. A lookup only caches its answer if nothing changed while it read.
+    private long changeCount = 0;
+    private boolean watching = false;
+    private boolean watchLost = false;
+    // Set while waiting to reopen a lost watch, so lookups don't each try it meanwhile
+    private boolean watchRetryPending = false;
+    private Closeable watch;
+    private boolean closed = false;
+    // Run on the watch thread after each change, so they must not block
+    private final List<Runnable> changeListeners = new CopyOnWriteArrayList<>();
+    // Everything registered through this client, put back under a new lease if the old one expires
+    private final Map<String, String> registrations = new ConcurrentHashMap<>();
+    // Unregistered keys whose delete failed, tried again with each renewal. Guarded by leaseLock.
+    private final Map<String, String> unregistrations = new HashMap<>();
+    // Guards the lease, and is held across puts so none uses a lease that is being replaced
+    private final Object leaseLock = new Object();
+    private long leaseId = 0;
+    private boolean leaseFailing = false;
+    private ScheduledExecutorService keepAlive;
+
+    private static final class CachedResponse {
+        final String response;
+        final long expiresAt;
+
+        CachedResponse(String response, long expiresAt) {
+            this.response = response;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private interface EtcdRead {
+        String read() throws IOException;
+    }
 
     public NameServiceClient (String nameServiceAddress) throws IOException {
         etcdClient = new EtcdClient(nameServiceAddress);
     }
 
+    // Started by the first lookup, so clients that only register never open one
+    private void startWatch() {
+        synchronized (changes) {
+            if (watch != null || watchRetryPending || closed) {
+                return;
+            }
+            watch = etcdClient.watchAll(this::onWatchMessage, this::onWatchClosed);
+        }
+    }
+
+    private void onWatchMessage(JSONObject result) {
+        if (result.optBoolean("created")) {
+            synchronized (changes) {
+                watching = true;
+                changeCount++;
+                if (watchLost) {
+                    watchLost = false;
+                    System.out.println("Watching the name service again");
+                }
+            }
+            // Anything may have changed while the watch was down
+            notifyChangeListeners();
+            return;
+        }
+        if (result.optBoolean("canceled")) {
+            // e.g. etcd compacted past our revision; closing reopens it from the current state
+            Closeable current;
+            synchronized (changes) {
+                current = watch;
+            }
+            try {
+                if (current != null) {
+                    current.close();
+                }
+            } catch (IOException ignore) {
+            }
+            return;
+        }
+        if (!result.has("events")) {
+            return;
+        }
+        JSONArray events = result.getJSONArray("events");
+        // Under the same lock as a lookup's check-and-cache, so a lookup that read the old value
+        // either sees the count move and doesn't cache it, or cached it before this removes it
+        synchronized (changes) {
+            changeCount++;
+            for (int i = 0; i < events.length(); i++) {
+                String encodedKey = events.getJSONObject(i).getJSONObject("kv").getString("key");
+                invalidate(new String(Base64.getDecoder().decode(encodedKey), StandardCharsets.UTF_8));
+            }
+            changes.notifyAll();
+        }
+        notifyChangeListeners();
+    }
+
+    private void notifyChangeListeners() {
+        for (Runnable listener : changeListeners) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                System.err.println("Name service change listener failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // Runs the listener whenever a registration may have changed, for callers that keep their own
+    // view of the registered services. Starts the watch if nothing has yet.
+    public void addChangeListener(Runnable listener) {
+        changeListeners.add(listener);
+        startWatch();
+    }
+
+    public void removeChangeListener(Runnable listener) {
+        changeListeners.remove(listener);
+    }
+
+    // Drops the key's own entry and every prefix lookup that includes it
+    private void invalidate(String key) {
+        cache.remove(KEY_ENTRY + key);
+        cache.keySet().removeIf(entry -> entry.startsWith(PREFIX_ENTRY)
+                && key.startsWith(entry.substring(PREFIX_ENTRY.length())));
+    }
+
+    private void onWatchClosed(IOException error) {
+        synchronized (changes) {
+            watching = false;
+            changeCount++;
+            cache.clear();
+            watch = null;
+            if (closed) {
+                return;
+            }
+            if (!watchLost) {
+                watchLost = true;
+                System.err.println("Lost the name service watch" + (error != null ? " (" + error.getMessage() + ")" : "")
+                        + ", looking services up directly until it is back");
+            }
+            watchRetryPending = true;
+        }
+        Thread retry = new Thread(() -> {
+            try {
+                Thread.sleep(WATCH_RETRY_MILLIS);
+                synchronized (changes) {
+                    watchRetryPending = false;
+                }
+                startWatch();
+            } catch (InterruptedException ignore) {
+            }
+        }, "etcd-watch-retry");
+        retry.setDaemon(true);
+        retry.start();
+    }
+
+    private String lookup(String cacheEntry, EtcdRead read) throws IOException {
+        startWatch();
+        CachedResponse cached = cache.get(cacheEntry);
+        if (cached != null && cached.expiresAt > System.currentTimeMillis()) {
+            return cached.response;
+        }
+        long changesBefore;
+        synchronized (changes) {
+            changesBefore = changeCount;
+        }
+        String response = read.read();
+        synchronized (changes) {
+            if (watching && changeCount == changesBefore) {
+                cache.put(cacheEntry, new CachedResponse(response, System.currentTimeMillis() + CACHE_TTL_MILLIS));
+            }
+        }
+        return response;
+    }
+
+    // Returns once etcd reports a change, or after timeoutMillis
+    private void awaitChange(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (changes) {
+            long seen = changeCount;
+            long remaining = timeoutMillis;
+            while (changeCount == seen && remaining > 0) {
+                changes.wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+    }
+
+    private void register(String key, String value) throws IOException {
+        synchronized (leaseLock) {
+            if (leaseId == 0) {
+                leaseId = etcdClient.grantLease(LEASE_TTL_SECONDS);
+                startKeepAlive();
+            }
+            etcdClient.put(key, value, leaseId);
+            registrations.put(key, value);
+        }
+    }
+
+    // Stops keeping a key registered and deletes it, e.g. the leader's service entry once this
+    // node is no longer the leader. Left alone if another client has put its own value there
+    // since. A delete that fails is tried again in the background.
+    public void unregister(String key) throws IOException {
+        synchronized (leaseLock) {
+            String value = registrations.remove(key);
+            if (value == null) {
+                return;
+            }
+            unregistrations.remove(key);
+            try {
+                etcdClient.deleteIfValue(key, value);
+            } catch (IOException e) {
+                unregistrations.put(key, value);
+                throw e;
+            }
+        }
+    }
+
+    // Callers hold leaseLock
+    private void startKeepAlive() {
+        if (keepAlive != null) {
+            return;
+        }
+        keepAlive = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "name-service-keepalive");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Three tries per TTL, so one lost renewal doesn't cost the registration
+        long interval = TimeUnit.SECONDS.toMillis(LEASE_TTL_SECONDS) / 3;
+        keepAlive.scheduleWithFixedDelay(this::renewLease, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    // Runs on the keepalive thread
+    private void renewLease() {
+        synchronized (leaseLock) {
+            if (leaseId == 0) {
+                return;
+            }
+            try {
+                retryUnregistrations();
+                if (etcdClient.keepAlive(leaseId) <= 0) {
+                    // Out of reach for a whole TTL: etcd has dropped our keys, so put them back
+                    System.err.println("Registration lease expired, registering " + registrations.size() + " keys again");
+                    leaseId = etcdClient.grantLease(LEASE_TTL_SECONDS);
+                    for (Map.Entry<String, String> registration : registrations.entrySet()) {
+                        etcdClient.put(registration.getKey(), registration.getValue(), leaseId);
+                    }
+                }
+                if (leaseFailing) {
+                    leaseFailing = false;
+                    System.out.println("Renewing the registration lease again");
+                }
+            } catch (IOException e) {
+                if (!leaseFailing) {
+                    leaseFailing = true;
+                    System.err.println("Failed to renew the registration lease: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Callers hold leaseLock
+    private void retryUnregistrations() throws IOException {
+        Iterator<Map.Entry<String, String>> pending = unregistrations.entrySet().iterator();
+        while (pending.hasNext()) {
+            Map.Entry<String, String> unregistration = pending.next();
+            etcdClient.deleteIfValue(unregistration.getKey(), unregistration.getValue());
+            pending.remove();
+        }
+    }
+
+    // Removes this client's registrations from etcd and stops watching it
+    public void close() throws IOException {
+        Closeable current;
+        synchronized (changes) {
+            closed = true;
+            current = watch;
+        }
+        if (current != null) {
+            current.close();
+        }
+        synchronized (leaseLock) {
+            if (keepAlive != null) {
+                keepAlive.shutdownNow();
+                keepAlive = null;
+            }
+            if (leaseId != 0) {
+                long revoked = leaseId;
+                leaseId = 0;
+                registrations.clear();
+                unregistrations.clear();
+                etcdClient.revokeLease(revoked);
+            }
+        }
+    }
+
     public static String buildServerDetailsEntry(String serviceAddress, int port, String protocol){
         return new JSONObject()
                 .put("ip", serviceAddress)
@@ -21,22 +336,76 @@ public class NameServiceClient {
                 .toString();
     }
 
+    // Waits for the service to register if it hasn't yet; the watch ends the wait as soon as it does
     public ServiceDetails findService(String serviceName) throws InterruptedException, IOException {
         System.out.println("Searching for details of service :" + serviceName);
-        String etcdResponse = etcdClient.get(serviceName);
-        ServiceDetails serviceDetails = new ServiceDetails().populate(etcdResponse);
+        ServiceDetails serviceDetails = new ServiceDetails().populate(lookupKey(serviceName));
         while (serviceDetails == null) {
-            System.out.println("Couldn't find details of service" + serviceName + ", retrying in 3 seconds.");
-            Thread.sleep(5000);
-            etcdResponse = etcdClient.get(serviceName);
-            serviceDetails = new ServiceDetails().populate(etcdResponse);
+            System.out.println("Couldn't find details of service " + serviceName + ", retrying in "
+                    + RETRY_DELAY_MILLIS / 1000 + " seconds or as soon as it registers.");
+            awaitChange(RETRY_DELAY_MILLIS);
+            serviceDetails = new ServiceDetails().populate(lookupKey(serviceName));
         }
         return serviceDetails;
     }
 
+    // Like findService, but returns null at once if the service isn't registered
+    public ServiceDetails lookupService(String serviceName) throws IOException {
+        return new ServiceDetails().populate(lookupKey(serviceName));
+    }
+
+    private String lookupKey(String key) throws IOException {
+        return lookup(KEY_ENTRY + key, () -> etcdClient.get(key));
+    }
+
+    // Stays registered while this client is alive, see the lease above
     public void registerService(String serviceName, String IPAddress, int port, String protocol) throws IOException {
         String serviceInfoValue = buildServerDetailsEntry(IPAddress, port, protocol);
-        etcdClient.put(serviceName, serviceInfoValue);
+        register(serviceName, serviceInfoValue);
+    }
+
+    // One of several interchangeable instances of a service, e.g. a read replica. Each instance
+    // has its own key under the service name so they don't overwrite each other, and its own
+    // server's lease, so it disappears from findServiceInstances when that server does.
+    public void registerServiceInstance(String serviceName, String instanceId, String IPAddress, int port,
+                                        String protocol) throws IOException {
+        register(instanceKey(serviceName, instanceId), buildServerDetailsEntry(IPAddress, port, protocol));
+    }
+
+    // Every instance registered with registerServiceInstance; empty if there are none
+    public List<ServiceDetails> findServiceInstances(String serviceName) throws IOException {
+        String prefix = serviceName + "/";
+        String etcdResponse = lookup(PREFIX_ENTRY + prefix, () -> etcdClient.getPrefix(prefix));
+        List<ServiceDetails> instances = new ArrayList<>();
+        JSONObject responseJson = new JSONObject(etcdResponse);
+        if (responseJson.has("kvs")) {
+            JSONArray values = responseJson.getJSONArray("kvs");
+            for (int i = 0; i < values.length(); i++) {
+                instances.add(new ServiceDetails().populateValue(values.getJSONObject(i)));
+            }
+        }
+        return instances;
+    }
+
+    // Which node owns which concerts; published by the node that maintains the map. Not leased:
+    // the map outlives whichever node published it, and the next one overwrites it.
+    public void registerShardMap(String serviceName, ShardMap shardMap) throws IOException {
+        etcdClient.put(serviceName, shardMap.toJson());
+    }
+
+    // The last published shard map, or null if none has been published yet
+    public ShardMap findShardMap(String serviceName) throws IOException {
+        JSONObject responseJson = new JSONObject(lookupKey(serviceName));
+        if (!responseJson.has("kvs")) {
+            return null;
+        }
+        String encodedValue = responseJson.getJSONArray("kvs").getJSONObject(0).getString("value");
+        byte[] value = Base64.getDecoder().decode(encodedValue.getBytes(StandardCharsets.UTF_8));
+        return ShardMap.fromJson(new String(value, StandardCharsets.UTF_8));
+    }
+
+    private static String instanceKey(String serviceName, String instanceId) {
+        return serviceName + "/" + instanceId;
     }
 
     public class ServiceDetails {
@@ -49,19 +418,23 @@ public class NameServiceClient {
                 JSONArray values = serverResponseJSONObject.getJSONArray("kvs");
                 JSONObject firstValue = (JSONObject)
                         values.get(0);
-                String encodedValue = (String)
-                        firstValue.get("value");
-                byte[] serverDetailsBytes = Base64.getDecoder().decode(encodedValue.getBytes(StandardCharsets.UTF_8));
-                JSONObject serverDetailsJson = new JSONObject(new String(serverDetailsBytes));
-                IPAddress = serverDetailsJson.get("ip").toString();
-                port = Integer.parseInt(serverDetailsJson.get("port").toString());
-                protocol = serverDetailsJson.get("protocol").toString();
-                return this;
+                return populateValue(firstValue);
             } else {
                 return null;
             }
         }
 
+        ServiceDetails populateValue(JSONObject keyValue) {
+            String encodedValue = (String)
+                    keyValue.get("value");
+            byte[] serverDetailsBytes = Base64.getDecoder().decode(encodedValue.getBytes(StandardCharsets.UTF_8));
+            JSONObject serverDetailsJson = new JSONObject(new String(serverDetailsBytes, StandardCharsets.UTF_8));
+            IPAddress = serverDetailsJson.get("ip").toString();
+            port = Integer.parseInt(serverDetailsJson.get("port").toString());
+            protocol = serverDetailsJson.get("protocol").toString();
+            return this;
+        }
+
         public String getIPAddress(){
             return IPAddress;
         }
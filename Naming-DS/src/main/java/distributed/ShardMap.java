@@ -0,0 +1,89 @@
+package distributed;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+// Consistent hash ring over the addresses of the nodes that own shards. Each member gets a number
+// of points on the ring and a key belongs to the first point at or after its hash, so a member
+// joining or leaving only moves the keys next to its own points. The ring is rebuilt from the
+// member list alone, so servers and clients that agree on the list agree on every owner.
+public class ShardMap {
+    private static final int POINTS_PER_MEMBER = 64;
+
+    private final long epoch;
+    private final List<String> members;
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+
+    public ShardMap(long epoch, Collection<String> members) {
+        this.epoch = epoch;
+        this.members = Collections.unmodifiableList(new ArrayList<>(new TreeSet<>(members)));
+        for (String member : this.members) {
+            for (int i = 0; i < POINTS_PER_MEMBER; i++) {
+                ring.put(hash(member + "#" + i), member);
+            }
+        }
+    }
+
+    // Address of the member that owns key, or null if there are no members
+    public String ownerOf(String key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> point = ring.ceilingEntry(hash(key));
+        return point != null ? point.getValue() : ring.firstEntry().getValue();
+    }
+
+    // Increases every time the membership changes, so a node can tell a newer map from an older one
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public List<String> getMembers() {
+        return members;
+    }
+
+    public String toJson() {
+        return new JSONObject()
+                .put("epoch", epoch)
+                .put("members", new JSONArray(members))
+                .toString();
+    }
+
+    public static ShardMap fromJson(String json) {
+        JSONObject map = new JSONObject(json);
+        JSONArray memberArray = map.getJSONArray("members");
+        List<String> members = new ArrayList<>();
+        for (int i = 0; i < memberArray.length(); i++) {
+            members.add(memberArray.getString(i));
+        }
+        return new ShardMap(map.getLong("epoch"), members);
+    }
+
+    // First 8 bytes of the MD5 digest: spreads similar ids evenly and is the same on every JVM
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "epoch " + epoch + " " + members;
+    }
+}
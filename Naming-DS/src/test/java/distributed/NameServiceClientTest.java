@@ -0,0 +1,242 @@
+package distributed;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NameServiceClientTest {
+    private FakeEtcd etcd;
+    private NameServiceClient client;
+    private final Semaphore changes = new Semaphore(0);
+
+    @Before
+    public void start() throws IOException {
+        etcd = new FakeEtcd();
+        client = new NameServiceClient(etcd.address());
+    }
+
+    @After
+    public void stop() throws IOException {
+        client.close();
+        etcd.stop();
+    }
+
+    @Test
+    public void lookupsAreAnsweredFromTheCacheWhileWatching() throws Exception {
+        etcd.put("concerts", details("10.0.0.1", 1000));
+        watch();
+        assertEquals("10.0.0.1", client.lookupService("concerts").getIPAddress());
+        assertEquals("10.0.0.1", client.lookupService("concerts").getIPAddress());
+        assertNull(client.lookupService("missing"));
+        assertNull(client.lookupService("missing"));
+        assertEquals(2, etcd.reads.get());
+    }
+
+    @Test
+    public void aChangeDropsOnlyTheEntriesItTouches() throws Exception {
+        etcd.put("concerts", details("10.0.0.1", 1000));
+        etcd.put("other", details("10.0.0.9", 9000));
+        watch();
+        client.lookupService("concerts");
+        client.lookupService("other");
+
+        etcd.put("concerts", details("10.0.0.2", 2000));
+        awaitChange();
+        assertEquals(2000, client.lookupService("concerts").getPort());
+        assertEquals(9000, client.lookupService("other").getPort());
+        assertEquals(3, etcd.reads.get());
+    }
+
+    @Test
+    public void aNewInstanceDropsTheCachedInstanceList() throws Exception {
+        etcd.put("replicas/1", details("10.0.0.1", 1000));
+        watch();
+        assertEquals(1, client.findServiceInstances("replicas").size());
+        assertEquals(1, client.findServiceInstances("replicas").size());
+        assertEquals(1, etcd.reads.get());
+
+        etcd.put("replicas/2", details("10.0.0.2", 2000));
+        awaitChange();
+        assertEquals(2, client.findServiceInstances("replicas").size());
+        assertEquals(2, etcd.reads.get());
+    }
+
+    @Test
+    public void looksUpDirectlyUntilTheWatchIsBack() throws Exception {
+        etcd.put("concerts", details("10.0.0.1", 1000));
+        watch();
+        client.lookupService("concerts");
+
+        etcd.dropWatches(true);
+        // The client only notices once the stream ends, so poll for lookups reaching etcd
+        long deadline = System.currentTimeMillis() + 5000;
+        boolean direct = false;
+        while (!direct && System.currentTimeMillis() < deadline) {
+            int before = etcd.reads.get();
+            client.lookupService("concerts");
+            client.lookupService("concerts");
+            direct = etcd.reads.get() - before == 2;
+        }
+        assertTrue("Lookups kept coming from the cache with the watch down", direct);
+
+        changes.drainPermits();
+        etcd.dropWatches(false);
+        awaitChange();
+        int before = etcd.reads.get();
+        client.lookupService("concerts");
+        client.lookupService("concerts");
+        assertEquals(1, etcd.reads.get() - before);
+    }
+
+    // Returns once the watch is open, which the client announces as a change
+    private void watch() throws InterruptedException {
+        client.addChangeListener(changes::release);
+        awaitChange();
+    }
+
+    private void awaitChange() throws InterruptedException {
+        assertTrue("No change seen", changes.tryAcquire(5, TimeUnit.SECONDS));
+    }
+
+    private static String details(String ip, int port) {
+        return NameServiceClient.buildServerDetailsEntry(ip, port, "tcp");
+    }
+
+    // Just enough of etcd's JSON gateway: ranges, puts made by the test, and a watch on every key
+    private static final class FakeEtcd {
+        final AtomicInteger reads = new AtomicInteger();
+        private final Map<String, String> values = new ConcurrentSkipListMap<>();
+        private final List<OutputStream> watches = new CopyOnWriteArrayList<>();
+        private final HttpServer server;
+        private volatile boolean refuseWatches;
+
+        FakeEtcd() throws IOException {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.setExecutor(Executors.newCachedThreadPool());
+            server.createContext("/v3/kv/range", this::range);
+            server.createContext("/v3/watch", this::watch);
+            server.start();
+        }
+
+        String address() {
+            return "127.0.0.1:" + server.getAddress().getPort();
+        }
+
+        void put(String key, String value) {
+            values.put(key, value);
+            JSONObject event = new JSONObject().put("kv", new JSONObject().put("key", encode(key)).put("value", encode(value)));
+            for (OutputStream watch : watches) {
+                send(watch, new JSONObject().put("events", new JSONArray().put(event)));
+            }
+        }
+
+        // Ends every open watch, and with refuse set turns new ones away until called again without
+        void dropWatches(boolean refuse) {
+            refuseWatches = refuse;
+            for (OutputStream watch : watches) {
+                try {
+                    watch.close();
+                } catch (IOException ignore) {
+                }
+            }
+            watches.clear();
+        }
+
+        void stop() {
+            dropWatches(true);
+            server.stop(0);
+        }
+
+        private void range(HttpExchange exchange) throws IOException {
+            reads.incrementAndGet();
+            JSONObject request = new JSONObject(body(exchange));
+            String key = decode(request.getString("key"));
+            String end = request.has("range_end") ? decode(request.getString("range_end")) : null;
+            JSONArray kvs = new JSONArray();
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                boolean selected = end == null ? entry.getKey().equals(key)
+                        : entry.getKey().compareTo(key) >= 0 && entry.getKey().compareTo(end) < 0;
+                if (selected) {
+                    kvs.put(new JSONObject().put("key", encode(entry.getKey())).put("value", encode(entry.getValue())));
+                }
+            }
+            JSONObject response = new JSONObject().put("header", new JSONObject());
+            if (kvs.length() > 0) {
+                response.put("kvs", kvs).put("count", kvs.length());
+            }
+            byte[] bytes = response.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+
+        // Left open after the handler returns, so the client sees one long-lived stream
+        private void watch(HttpExchange exchange) throws IOException {
+            body(exchange);
+            if (refuseWatches) {
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+                return;
+            }
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream out = exchange.getResponseBody();
+            send(out, new JSONObject().put("header", new JSONObject()).put("created", true));
+            watches.add(out);
+        }
+
+        private void send(OutputStream out, JSONObject result) {
+            try {
+                synchronized (out) {
+                    out.write((new JSONObject().put("result", result) + "\n").getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                }
+            } catch (IOException e) {
+                watches.remove(out);
+            }
+        }
+
+        private static String body(HttpExchange exchange) throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (InputStream in = exchange.getRequestBody()) {
+                byte[] buffer = new byte[4096];
+                for (int read; (read = in.read(buffer)) != -1; ) {
+                    body.write(buffer, 0, read);
+                }
+            }
+            return body.toString("UTF-8");
+        }
+
+        private static String encode(String value) {
+            return Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private static String decode(String value) {
+            return new String(Base64.getDecoder().decode(value), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package distributed;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ShardMapTest {
+    private static final int KEYS = 10_000;
+
+    @Test
+    public void anEmptyMapOwnsNothing() {
+        assertNull(new ShardMap(0, Collections.emptyList()).ownerOf("concert-1"));
+    }
+
+    @Test
+    public void ownersDependOnTheMembersNotTheirOrderOrTheEpoch() {
+        ShardMap map = new ShardMap(1, Arrays.asList("a:1", "b:1", "c:1"));
+        ShardMap reordered = new ShardMap(7, Arrays.asList("c:1", "a:1", "b:1", "a:1"));
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(map.ownerOf("concert-" + i), reordered.ownerOf("concert-" + i));
+        }
+    }
+
+    @Test
+    public void keysSpreadAcrossEveryMember() {
+        ShardMap map = new ShardMap(1, Arrays.asList("a:1", "b:1", "c:1", "d:1"));
+        Map<String, Integer> owned = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            owned.merge(map.ownerOf("concert-" + i), 1, Integer::sum);
+        }
+        assertEquals(map.getMembers().size(), owned.size());
+        for (int count : owned.values()) {
+            // A quarter each, give or take what 64 points per member can even out
+            assertTrue("Owns " + count + " of " + KEYS, count > KEYS / 8 && count < KEYS / 2);
+        }
+    }
+
+    @Test
+    public void aJoiningMemberOnlyTakesKeysForItself() {
+        ShardMap before = new ShardMap(1, Arrays.asList("a:1", "b:1", "c:1"));
+        ShardMap after = new ShardMap(2, Arrays.asList("a:1", "b:1", "c:1", "d:1"));
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String key = "concert-" + i;
+            if (!before.ownerOf(key).equals(after.ownerOf(key))) {
+                assertEquals("d:1", after.ownerOf(key));
+                moved++;
+            }
+        }
+        assertTrue("Moved " + moved + " of " + KEYS, moved > KEYS / 8 && moved < KEYS / 2);
+    }
+
+    @Test
+    public void survivesAJsonRoundTrip() {
+        ShardMap map = new ShardMap(3, Arrays.asList("b:1", "a:1"));
+        ShardMap parsed = ShardMap.fromJson(map.toJson());
+        assertEquals(3, parsed.getEpoch());
+        assertEquals(Arrays.asList("a:1", "b:1"), parsed.getMembers());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(map.ownerOf("concert-" + i), parsed.ownerOf("concert-" + i));
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package ds.tutorials.benchmarks;
+
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+
+// Standalone ZooKeeper on an ephemeral port, so benchmarks don't need an external ensemble
+public class EmbeddedZooKeeper implements Closeable {
+    private static final int TICK_TIME = 2000;
+    private static final int MAX_CONNECTIONS = 1000;
+
+    private final ZooKeeperServer server;
+    private final ServerCnxnFactory factory;
+
+    public EmbeddedZooKeeper() throws IOException, InterruptedException {
+        File dataDir = Files.createTempDirectory("bench-zk").toFile();
+        this.server = new ZooKeeperServer(dataDir, dataDir, TICK_TIME);
+        this.factory = ServerCnxnFactory.createFactory(new InetSocketAddress("127.0.0.1", 0), MAX_CONNECTIONS);
+        factory.startup(server);
+    }
+
+    public String getConnectString() {
+        return "127.0.0.1:" + factory.getLocalPort();
+    }
+
+    @Override
+    public void close() {
+        factory.shutdown();
+        server.shutdown();
+    }
+}
@@ -0,0 +1,140 @@
+package ds.tutorials.benchmarks;
+
+import com.sun.net.httpserver.HttpServer;
+import distributed.EtcdClient;
+import distributed.NameServiceClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Name service lookup latency against a stub of etcd's JSON gateway on loopback, so only the
+// client's transport is measured. legacyTransport is what EtcdClient used to do (disconnect after
+// every call, read a char per byte), for comparison. instances is the number of key-values in
+// each response: 1 for a service lookup, more for a prefix read of a service's instances.
+// Each trial ends by printing how many TCP connections its requests came over.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EtcdClientBenchmark {
+    private static final String KEY = "concert-service";
+
+    @Param({"1", "1000"})
+    public int instances;
+
+    private HttpServer stub;
+    // Client ports seen by the stub, one per connection
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+    private final AtomicLong requests = new AtomicLong();
+    private String rangeUrl;
+    private String rangePayload;
+    private EtcdClient etcdClient;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        // etcd turns Nagle's algorithm off; the JDK's server only does when asked
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        byte[] response = rangeResponse(instances).getBytes(StandardCharsets.UTF_8);
+        stub = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        stub.createContext("/v3/kv/range", exchange -> {
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            requests.incrementAndGet();
+            try (InputStream request = exchange.getRequestBody()) {
+                while (request.read() != -1) {
+                    // Drained so the connection can take the next request
+                }
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(response);
+            }
+        });
+        stub.setExecutor(Executors.newFixedThreadPool(4));
+        stub.start();
+        String address = "127.0.0.1:" + stub.getAddress().getPort();
+        rangeUrl = "http://" + address + "/v3/kv/range";
+        rangePayload = new JSONObject()
+                .put("key", Base64.getEncoder().encodeToString(KEY.getBytes(StandardCharsets.UTF_8)))
+                .toString();
+        etcdClient = new EtcdClient(address);
+    }
+
+    // What etcd returns for registered services: key-values with the details base64 encoded
+    private static String rangeResponse(int instances) {
+        JSONArray keyValues = new JSONArray();
+        for (int i = 0; i < instances; i++) {
+            String key = KEY + "/localhost:" + (50000 + i);
+            String details = NameServiceClient.buildServerDetailsEntry("localhost", 50000 + i, "grpc");
+            keyValues.put(new JSONObject()
+                    .put("key", Base64.getEncoder().encodeToString(key.getBytes(StandardCharsets.UTF_8)))
+                    .put("value", Base64.getEncoder().encodeToString(details.getBytes(StandardCharsets.UTF_8))));
+        }
+        return new JSONObject()
+                .put("header", new JSONObject().put("revision", "42"))
+                .put("kvs", keyValues)
+                .put("count", Integer.toString(instances))
+                .toString();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.out.println(requests.get() + " requests over " + clientPorts.size() + " connections");
+        stub.stop(0);
+    }
+
+    @Benchmark
+    public String keepAlive() throws IOException {
+        return etcdClient.get(KEY);
+    }
+
+    @Benchmark
+    public String legacyTransport() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(rangeUrl).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+        connection.connect();
+        OutputStream outputStream = connection.getOutputStream();
+        outputStream.write(rangePayload.getBytes(StandardCharsets.UTF_8));
+        InputStream inputStream = connection.getInputStream();
+        StringBuilder builder = new StringBuilder();
+        int character = inputStream.read();
+        while (character != -1) {
+            builder.append((char) character);
+            character = inputStream.read();
+        }
+        inputStream.close();
+        outputStream.close();
+        connection.disconnect();
+        return builder.toString();
+    }
+}
@@ -0,0 +1,77 @@
+package ds.tutorials.benchmarks;
+
+import concert.ConcertCommandServiceGrpc;
+import concert.ConcertQueryServiceGrpc;
+import concert.ConcertService;
+import ds.tutorials.communication.server.ConcertCommandServiceImpl;
+import ds.tutorials.communication.server.ConcertQueryServiceImpl;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+// The command and query services behind an in-process gRPC channel: requests go through the
+// generated stubs and serialization, but not the network
+public class InProcessConcertServer implements Closeable {
+    private final EmbeddedZooKeeper zooKeeper;
+    private final ConcertCommandServiceImpl commandService;
+    private final Server server;
+    private final ManagedChannel channel;
+
+    public InProcessConcertServer() throws IOException, InterruptedException {
+        this.zooKeeper = new EmbeddedZooKeeper();
+        String dataDir = Files.createTempDirectory("bench-store").toString();
+        this.commandService = new ConcertCommandServiceImpl("", dataDir, zooKeeper.getConnectString());
+        String name = InProcessServerBuilder.generateName();
+        this.server = InProcessServerBuilder.forName(name)
+                .addService(commandService)
+                .addService(new ConcertQueryServiceImpl(commandService.getStore()))
+                .build()
+                .start();
+        this.channel = InProcessChannelBuilder.forName(name).build();
+    }
+
+    public ConcertCommandServiceGrpc.ConcertCommandServiceBlockingStub commands() {
+        return ConcertCommandServiceGrpc.newBlockingStub(channel);
+    }
+
+    public ConcertQueryServiceGrpc.ConcertQueryServiceBlockingStub queries() {
+        return ConcertQueryServiceGrpc.newBlockingStub(channel);
+    }
+
+    public ConcertCommandServiceImpl getCommandService() {
+        return commandService;
+    }
+
+    public void addConcert(String id, String tier, int seats) {
+        ConcertService.ConcertResponse response = commands().addConcert(ConcertService.AddConcertRequest.newBuilder()
+                .setConcert(ConcertService.Concert.newBuilder()
+                        .setId(id)
+                        .setName("Benchmark " + id)
+                        .setDate("2030-01-01")
+                        .putSeatTiers(tier, seats)
+                        .putPrices(tier, 10.0))
+                .build());
+        if (!response.getSuccess()) {
+            throw new IllegalStateException("Failed to add concert " + id + ": " + response.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.shutdownNow();
+        server.shutdownNow();
+        try {
+            server.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        commandService.getStore().close();
+        zooKeeper.close();
+    }
+}
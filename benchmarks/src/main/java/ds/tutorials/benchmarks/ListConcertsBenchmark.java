@@ -0,0 +1,100 @@
+package ds.tutorials.benchmarks;
+
+import concert.ConcertQueryServiceGrpc;
+import concert.ConcertService;
+import ds.tutorials.communication.server.ConcertQueryServiceImpl;
+import ds.tutorials.communication.server.ConcertStore;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+// ListConcerts latency against catalogue size. Only the query service is involved, so the store
+// is filled directly and no ZooKeeper is needed.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListConcertsBenchmark {
+    private static final String TIER = "Regular";
+
+    @Param({"100", "1000", "10000"})
+    public int concertCount;
+
+    private ConcertStore store;
+    private Server server;
+    private ManagedChannel channel;
+    private ConcertQueryServiceGrpc.ConcertQueryServiceBlockingStub queries;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        store = new ConcertStore(Files.createTempDirectory("bench-list").toString(), Long.MAX_VALUE / 2);
+        for (int i = 0; i < concertCount; i++) {
+            store.commit(ConcertService.Mutation.newBuilder().setPutConcert(ConcertService.Concert.newBuilder()
+                    .setId("concert-" + i)
+                    .setName("Concert " + i)
+                    .setDate(String.format("2030-%02d-%02d", i % 12 + 1, i % 28 + 1))
+                    .putSeatTiers(TIER, i % 3 == 0 ? 0 : 100)
+                    .putPrices(TIER, 10.0)));
+        }
+        // The catalogue view is published in the background
+        while (store.getCatalog().current().getResponse().getConcertsCount() < concertCount) {
+            Thread.sleep(10);
+        }
+        String name = InProcessServerBuilder.generateName();
+        server = InProcessServerBuilder.forName(name)
+                .addService(new ConcertQueryServiceImpl(store))
+                .build()
+                .start();
+        channel = InProcessChannelBuilder.forName(name).build();
+        queries = ConcertQueryServiceGrpc.newBlockingStub(channel);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        channel.shutdownNow();
+        server.shutdownNow();
+        store.close();
+    }
+
+    @Benchmark
+    public ConcertService.ListConcertsResponse listAll() {
+        return queries.listConcerts(ConcertService.ListConcertsRequest.getDefaultInstance());
+    }
+
+    @Benchmark
+    public ConcertService.ListConcertsResponse listFirstPage() {
+        return queries.listConcerts(ConcertService.ListConcertsRequest.newBuilder()
+                .setPageSize(50)
+                .build());
+    }
+
+    @Benchmark
+    public ConcertService.ListConcertsResponse listMonthWithSeats() {
+        return queries.listConcerts(ConcertService.ListConcertsRequest.newBuilder()
+                .setDateFrom("2030-06-01")
+                .setDateTo("2030-06-30")
+                .setAvailableTier(TIER)
+                .setPageSize(50)
+                .build());
+    }
+}
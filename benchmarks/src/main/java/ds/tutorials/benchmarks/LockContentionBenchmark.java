@@ -0,0 +1,69 @@
+package ds.tutorials.benchmarks;
+
+import ds.tutorials.synchronization.DistributedLock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Lock latency under contention, sampled so the results include percentiles. Like a set of
+// DummyProcess instances, every thread has its own DistributedLock, so each takes its own place
+// in the lock's queue (they share one session). A sample is the acquire, the hold and the release.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class LockContentionBenchmark {
+    private static final String LOCK_NAME = "ContentionBenchmarkLock";
+
+    @Param({"0", "1"})
+    public long holdMillis;
+
+    private EmbeddedZooKeeper zooKeeper;
+
+    @State(Scope.Thread)
+    public static class Client {
+        DistributedLock lock;
+
+        @Setup(Level.Trial)
+        public void setUp(LockContentionBenchmark benchmark) throws Exception {
+            lock = new DistributedLock(LOCK_NAME);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        zooKeeper = new EmbeddedZooKeeper();
+        DistributedLock.setZooKeeperURL(zooKeeper.getConnectString());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        zooKeeper.close();
+    }
+
+    @Benchmark
+    @Threads(32)
+    public void acquireAndRelease(Client client) throws Exception {
+        client.lock.acquireLock();
+        if (holdMillis > 0) {
+            Thread.sleep(holdMillis);
+        }
+        client.lock.releaseLock();
+    }
+}
@@ -0,0 +1,113 @@
+package ds.tutorials.benchmarks;
+
+import concert.ConcertService;
+import ds.tutorials.communication.server.ConcertStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+// Persistence cost against store size: a durable write should stay flat as the store grows,
+// while snapshot and recovery time grow with it
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersistenceBenchmark {
+    private static final String CONCERT_ID = "persisted";
+    private static final String TIER = "Regular";
+    // Background snapshots would skew every measurement
+    private static final long NO_SCHEDULED_SNAPSHOTS = Long.MAX_VALUE / 2;
+
+    @Param({"1000", "10000", "100000"})
+    public int reservations;
+
+    private ConcertStore store;
+    private String recoveryDir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        store = populate(Files.createTempDirectory("bench-persist").toString());
+        // Recovery loads most of the state from a snapshot and replays the rest from the log
+        recoveryDir = Files.createTempDirectory("bench-recover").toString();
+        try (ConcertStore recovery = populate(recoveryDir)) {
+            recovery.snapshot();
+            long position = 0;
+            for (int i = 0; i < reservations / 2; i++) {
+                position = recovery.reserve(record());
+            }
+            recovery.awaitDurable(position);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+    }
+
+    @Benchmark
+    public long reserveDurable() throws Exception {
+        long position = store.reserve(record());
+        store.awaitDurable(position);
+        return position;
+    }
+
+    // One new record per call, since a snapshot with nothing new since the last one is skipped
+    @Benchmark
+    public long snapshot() throws Exception {
+        store.reserve(record());
+        store.snapshot();
+        return store.getSequence();
+    }
+
+    @Benchmark
+    public int recover() throws IOException {
+        try (ConcertStore recovered = new ConcertStore(recoveryDir, NO_SCHEDULED_SNAPSHOTS)) {
+            return recovered.getReservations().size();
+        }
+    }
+
+    private ConcertStore populate(String dataDir) throws Exception {
+        ConcertStore populated = new ConcertStore(dataDir, NO_SCHEDULED_SNAPSHOTS);
+        populated.commit(ConcertService.Mutation.newBuilder().setPutConcert(ConcertService.Concert.newBuilder()
+                .setId(CONCERT_ID)
+                .setName("Persistence benchmark")
+                .setDate("2030-01-01")
+                .putSeatTiers(TIER, Integer.MAX_VALUE)
+                .putPrices(TIER, 10.0)));
+        long position = 0;
+        for (int i = 0; i < reservations; i++) {
+            position = populated.reserve(record());
+        }
+        populated.awaitDurable(position);
+        return populated;
+    }
+
+    private static ConcertService.ReservationRecord record() {
+        return ConcertService.ReservationRecord.newBuilder()
+                .setConcertId(CONCERT_ID)
+                .setTier(TIER)
+                .setCount(1)
+                .setReservation(ConcertService.ReservationResponse.newBuilder()
+                        .setSuccess(true)
+                        .setMessage("Reservation successful")
+                        .setReservationId(UUID.randomUUID().toString()))
+                .build();
+    }
+}
@@ -0,0 +1,106 @@
+package ds.tutorials.benchmarks;
+
+import concert.ConcertService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+// Reservation throughput through the gRPC stubs, including the distributed lock, the 2PC round
+// and the write-ahead log fsync
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ReservationBenchmark {
+    static final String TIER = "Regular";
+    private static final String CONTENDED_CONCERT = "contended";
+    private static final int BATCH_SIZE = 16;
+
+    private InProcessConcertServer server;
+    private ConcertService.ReserveTicketsBatchRequest batch;
+
+    // Gives each benchmark thread a concert of its own
+    @State(Scope.Thread)
+    public static class OwnConcert {
+        String concertId;
+
+        @Setup(Level.Trial)
+        public void setUp(ReservationBenchmark benchmark) {
+            concertId = "single-" + UUID.randomUUID();
+            benchmark.server.addConcert(concertId, TIER, Integer.MAX_VALUE);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        server = new InProcessConcertServer();
+        server.addConcert(CONTENDED_CONCERT, TIER, Integer.MAX_VALUE);
+        ConcertService.ReserveTicketsBatchRequest.Builder builder = ConcertService.ReserveTicketsBatchRequest.newBuilder();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            builder.addReservations(reserveRequest(CONTENDED_CONCERT));
+        }
+        batch = builder.build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public ConcertService.ReservationResponse reserveSingle(OwnConcert concert) {
+        return server.commands().reserveTickets(reserveRequest(concert.concertId));
+    }
+
+    @Benchmark
+    @Threads(8)
+    public ConcertService.ReservationResponse reserveContended() {
+        return server.commands().reserveTickets(reserveRequest(CONTENDED_CONCERT));
+    }
+
+    @Benchmark
+    @Threads(8)
+    public ConcertService.ReservationResponse bulkReserveContended() {
+        return server.commands().bulkReserve(ConcertService.BulkReserveRequest.newBuilder()
+                .setConcertId(CONTENDED_CONCERT)
+                .setTier(TIER)
+                .setCount(1)
+                .setGroupId("bench")
+                .build());
+    }
+
+    // Reported per ticket, so it compares directly with reserveContended
+    @Benchmark
+    @Threads(8)
+    @OperationsPerInvocation(BATCH_SIZE)
+    public ConcertService.ReserveTicketsBatchResponse reserveBatchContended() {
+        return server.commands().reserveTicketsBatch(batch);
+    }
+
+    static ConcertService.ReserveTicketsRequest reserveRequest(String concertId) {
+        return ConcertService.ReserveTicketsRequest.newBuilder()
+                .setConcertId(concertId)
+                .setTier(TIER)
+                .setCount(1)
+                .setCustomerId("bench")
+                .build();
+    }
+}
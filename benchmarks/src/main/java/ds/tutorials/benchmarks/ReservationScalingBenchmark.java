@@ -0,0 +1,59 @@
+package ds.tutorials.benchmarks;
+
+import concert.ConcertService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// How reservation throughput scales as the same threads spread over more concerts. Concerts
+// take different lock stripes, so reservations on different ones don't wait for each other.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ReservationScalingBenchmark {
+    @Param({"1", "2", "4", "8", "16"})
+    public int concerts;
+
+    private InProcessConcertServer server;
+    private String[] concertIds;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        server = new InProcessConcertServer();
+        concertIds = new String[concerts];
+        for (int i = 0; i < concerts; i++) {
+            concertIds[i] = "spread-" + i;
+            server.addConcert(concertIds[i], ReservationBenchmark.TIER, Integer.MAX_VALUE);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public ConcertService.ReservationResponse reserve() {
+        String concertId = concertIds[ThreadLocalRandom.current().nextInt(concertIds.length)];
+        return server.commands().reserveTickets(ReservationBenchmark.reserveRequest(concertId));
+    }
+}
@@ -0,0 +1,224 @@
+package ds.tutorials.communication.client;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import concert.ConcertCommandServiceGrpc;
+import concert.ConcertService.*;
+import distributed.NameServiceClient;
+import distributed.ShardMap;
+import io.grpc.Deadline;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+// Non-blocking access to the concert commands, for integrations that send a lot of them. Each call
+// returns a future at once, and calls are pipelined over one HTTP/2 connection per node, up to
+// maxInFlight at a time; past that, callers block until one completes, so a fast producer can't
+// queue up unbounded work. A call's deadline covers all of its attempts.
+//
+// Calls wait for a connection rather than fail without one, so UNAVAILABLE means the server turned
+// the command away unapplied (e.g. before it has a shard map) or the connection was lost mid-call,
+// possibly after the command was applied. Commands carry no request id, so only those that are
+// harmless to apply twice (cancelling a concert, setting a price) are tried again after UNAVAILABLE,
+// with an exponential, jittered backoff, until they succeed, run out of attempts or would miss their
+// deadline. The rest fail with it and leave the caller to check: a repeated reservation could book
+// the seats twice, and a repeated add or update would put back seats sold in between. A command
+// turned away because its concert moved to another owner was not applied, so every command is sent
+// on to the new owner.
+public class ConcertAsyncClient {
+    private static final String SERVICE_NAME = "concert-service";
+    private static final String SHARD_SERVICE_NAME = "concert-shards";
+    public static final int DEFAULT_MAX_IN_FLIGHT = 1000;
+    public static final long DEFAULT_DEADLINE_MS = 10000;
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+    private static final long INITIAL_BACKOFF_MS = 50;
+    private static final long MAX_BACKOFF_MS = 2000;
+    private static final long SHUTDOWN_MS = 5000;
+
+    private final NameServiceClient nameServiceClient;
+    private final ManagedChannel channel;
+    private final ConcertCommandServiceGrpc.ConcertCommandServiceFutureStub commandStub;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final long deadlineMillis;
+    private final int maxAttempts;
+    // Runs retries once their backoff is up, and shard map reloads
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "concert-async-client");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Runnable onNameServiceChange = () -> scheduler.execute(this::loadShardMap);
+    // Set when the servers shard concerts between them, as in ConcertClient
+    private volatile ShardMap shardMap;
+    private final Map<String, ManagedChannel> ownerChannels = new ConcurrentHashMap<>();
+
+    public ConcertAsyncClient(String nameServiceAddress) throws IOException {
+        this(nameServiceAddress, DEFAULT_MAX_IN_FLIGHT, DEFAULT_DEADLINE_MS, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    // maxAttempts bounds the attempts of a call that may be tried again; 1 turns retries off
+    public ConcertAsyncClient(String nameServiceAddress, int maxInFlight, long deadlineMillis, int maxAttempts) throws IOException {
+        if (maxInFlight < 1 || deadlineMillis < 1 || maxAttempts < 1) {
+            throw new IllegalArgumentException("maxInFlight, deadlineMillis and maxAttempts must be positive");
+        }
+        this.nameServiceClient = new NameServiceClient(nameServiceAddress);
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.deadlineMillis = deadlineMillis;
+        this.maxAttempts = maxAttempts;
+        channel = new NameServiceResolverProvider(nameServiceClient).channelBuilder(SERVICE_NAME)
+                .build();
+        commandStub = ConcertCommandServiceGrpc.newFutureStub(channel);
+        loadShardMap();
+        // The shard map changes rarely; follow it instead of looking it up per call
+        nameServiceClient.addChangeListener(onNameServiceChange);
+    }
+
+    public CompletableFuture<ReservationResponse> reserveTickets(ReserveTicketsRequest request) {
+        return submit(request.getConcertId(), false, stub -> stub.reserveTickets(request));
+    }
+
+    public CompletableFuture<ReservationResponse> bulkReserve(BulkReserveRequest request) {
+        return submit(request.getConcertId(), false, stub -> stub.bulkReserve(request));
+    }
+
+    public CompletableFuture<ConcertResponse> addConcert(AddConcertRequest request) {
+        return submit(request.getConcert().getId(), false, stub -> stub.addConcert(request));
+    }
+
+    public CompletableFuture<ConcertResponse> updateConcert(UpdateConcertRequest request) {
+        return submit(request.getConcert().getId(), false, stub -> stub.updateConcert(request));
+    }
+
+    public CompletableFuture<ConcertResponse> cancelConcert(CancelConcertRequest request) {
+        return submit(request.getConcertId(), true, stub -> stub.cancelConcert(request));
+    }
+
+    public CompletableFuture<ConcertResponse> addTicketStock(AddTicketStockRequest request) {
+        return submit(request.getConcertId(), false, stub -> stub.addTicketStock(request));
+    }
+
+    public CompletableFuture<ConcertResponse> updateTicketPrice(UpdateTicketPriceRequest request) {
+        return submit(request.getConcertId(), true, stub -> stub.updateTicketPrice(request));
+    }
+
+    // Blocks while maxInFlight calls are outstanding; the permit is held until the call completes,
+    // retries included. Only a repeatable call is retried after UNAVAILABLE.
+    private <T> CompletableFuture<T> submit(String concertId, boolean repeatable,
+                                            Function<ConcertCommandServiceGrpc.ConcertCommandServiceFutureStub, ListenableFuture<T>> call) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(e);
+            return result;
+        }
+        result.whenComplete((response, error) -> inFlight.release());
+        attempt(concertId, repeatable, call, Deadline.after(deadlineMillis, TimeUnit.MILLISECONDS), 1, result);
+        return result;
+    }
+
+    private <T> void attempt(String concertId, boolean repeatable,
+                             Function<ConcertCommandServiceGrpc.ConcertCommandServiceFutureStub, ListenableFuture<T>> call,
+                             Deadline deadline, int attempt, CompletableFuture<T> result) {
+        ListenableFuture<T> response;
+        try {
+            response = call.apply(stubFor(concertId).withDeadline(deadline).withWaitForReady());
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+            return;
+        }
+        Futures.addCallback(response, new FutureCallback<T>() {
+            @Override
+            public void onSuccess(T value) {
+                result.complete(value);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                Status.Code code = Status.fromThrowable(t).getCode();
+                // The owner we picked may have handed the concert on; the retry uses the new map
+                boolean moved = code == Status.Code.FAILED_PRECONDITION && shardMap != null;
+                long backoff = moved ? 0 : backoff(attempt);
+                if ((moved || (code == Status.Code.UNAVAILABLE && repeatable)) && attempt < maxAttempts
+                        && deadline.timeRemaining(TimeUnit.MILLISECONDS) > backoff) {
+                    scheduler.schedule(() -> {
+                        if (shardMap != null) {
+                            loadShardMap();
+                        }
+                        attempt(concertId, repeatable, call, deadline, attempt + 1, result);
+                    }, backoff, TimeUnit.MILLISECONDS);
+                } else {
+                    result.completeExceptionally(t);
+                }
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    // Full jitter, so calls that failed together don't all come back together
+    private static long backoff(int attempt) {
+        long ceiling = Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << Math.min(attempt - 1, 16));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private ConcertCommandServiceGrpc.ConcertCommandServiceFutureStub stubFor(String concertId) {
+        ShardMap map = shardMap;
+        if (map == null) {
+            return commandStub;
+        }
+        return ConcertCommandServiceGrpc.newFutureStub(ownerChannels.computeIfAbsent(map.ownerOf(concertId),
+                target -> ManagedChannelBuilder.forTarget(target)
+                        .usePlaintext()
+                        .build()));
+    }
+
+    private void loadShardMap() {
+        try {
+            ShardMap map = nameServiceClient.findShardMap(SHARD_SERVICE_NAME);
+            shardMap = map != null && !map.getMembers().isEmpty() ? map : null;
+        } catch (IOException e) {
+            System.err.println("Failed to look up the shard map: " + e.getMessage());
+            return;
+        }
+        ShardMap map = shardMap;
+        ownerChannels.entrySet().removeIf(owner -> {
+            if (map == null || !map.getMembers().contains(owner.getKey())) {
+                owner.getValue().shutdown();
+                return true;
+            }
+            return false;
+        });
+    }
+
+    // Waits for calls in flight to complete before closing the connections
+    public void shutdown() throws InterruptedException {
+        if (!inFlight.tryAcquire(maxInFlight, SHUTDOWN_MS, TimeUnit.MILLISECONDS)) {
+            System.err.println("Shutting down with " + (maxInFlight - inFlight.availablePermits()) + " calls in flight");
+        }
+        nameServiceClient.removeChangeListener(onNameServiceChange);
+        scheduler.shutdownNow();
+        for (ManagedChannel ownerChannel : ownerChannels.values()) {
+            ownerChannel.shutdown();
+        }
+        channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+        try {
+            nameServiceClient.close();
+        } catch (IOException ignore) {
+        }
+    }
+}
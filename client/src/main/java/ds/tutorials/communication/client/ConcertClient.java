@@ -2,57 +2,165 @@ package ds.tutorials.communication.client;
 
 import concert.ConcertQueryServiceGrpc;
 import concert.ConcertCommandServiceGrpc;
-import concert.ConcertServiceOuterClass.*;
+import concert.ConcertService.*;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.StatusRuntimeException;
 import distributed.NameServiceClient;
-import distributed.NameServiceClient.ServiceDetails;
+import distributed.ShardMap;
+import io.grpc.Status;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
 
 public class ConcertClient {
     private static final String SERVICE_NAME = "concert-service";
-    private static final String PROTOCOL = "grpc";
+    private static final String READ_SERVICE_NAME = "concert-service-read";
+    private static final String SHARD_SERVICE_NAME = "concert-shards";
     private static final int RETRY_DELAY_MS = 5000;
+    private static final int READ_DEADLINE_MS = 3000;
+    // Long enough to ride out a leader election
+    private static final int COMMAND_DEADLINE_MS = 10000;
     
     private final NameServiceClient nameServiceClient;
-    private ManagedChannel channel;
-    private ConcertQueryServiceGrpc.ConcertQueryServiceBlockingStub queryStub;
-    private ConcertCommandServiceGrpc.ConcertCommandServiceBlockingStub commandStub;
+    // Both channels follow the name service, so neither is ever rebuilt: the leader channel moves
+    // to whichever node holds the leader's entry, and the read channel spreads queries round
+    // robin over every registered replica, skipping any that are down.
+    private final ManagedChannel channel;
+    private final ConcertQueryServiceGrpc.ConcertQueryServiceBlockingStub queryStub;
+    private final ConcertCommandServiceGrpc.ConcertCommandServiceBlockingStub commandStub;
+    private final ManagedChannel readChannel;
+    private final ConcertQueryServiceGrpc.ConcertQueryServiceBlockingStub readStub;
+    // Version of our latest write, so reads from a replica always include it
+    private long lastWriteVersion = 0;
+    // Set when the servers shard concerts between them: commands then go straight to each
+    // concert's owner, and listings are gathered from every owner
+    private volatile ShardMap shardMap;
+    private final Map<String, ManagedChannel> ownerChannels = new ConcurrentHashMap<>();
+    // Each owner numbers its own writes, so versions are kept per owner
+    private final Map<String, Long> ownerVersions = new ConcurrentHashMap<>();
     
     public ConcertClient(String nameServiceAddress) throws IOException {
         this.nameServiceClient = new NameServiceClient(nameServiceAddress);
-        connectToServer();
+        NameServiceResolverProvider resolver = new NameServiceResolverProvider(nameServiceClient);
+        channel = resolver.channelBuilder(SERVICE_NAME)
+                .build();
+        queryStub = ConcertQueryServiceGrpc.newBlockingStub(channel);
+        commandStub = ConcertCommandServiceGrpc.newBlockingStub(channel);
+        readChannel = resolver.channelBuilder(READ_SERVICE_NAME)
+                .build();
+        readStub = ConcertQueryServiceGrpc.newBlockingStub(readChannel);
+        loadShardMap();
     }
-    
-    private void connectToServer() throws IOException {
+
+    private void loadShardMap() {
         try {
-            ServiceDetails serviceDetails = nameServiceClient.findService(SERVICE_NAME);
-            channel = ManagedChannelBuilder.forAddress(serviceDetails.getIPAddress(), serviceDetails.getPort())
-                    .usePlaintext()
-                    .build();
-            queryStub = ConcertQueryServiceGrpc.newBlockingStub(channel);
-            commandStub = ConcertCommandServiceGrpc.newBlockingStub(channel);
-        } catch (InterruptedException e) {
-            throw new IOException("Failed to connect to server", e);
+            ShardMap map = nameServiceClient.findShardMap(SHARD_SERVICE_NAME);
+            shardMap = map != null && !map.getMembers().isEmpty() ? map : null;
+        } catch (IOException e) {
+            System.err.println("Failed to look up the shard map: " + e.getMessage());
+            return;
+        }
+        ShardMap map = shardMap;
+        ownerChannels.entrySet().removeIf(owner -> {
+            if (map == null || !map.getMembers().contains(owner.getKey())) {
+                owner.getValue().shutdown();
+                return true;
+            }
+            return false;
+        });
+    }
+
+    private ManagedChannel ownerChannel(String address) {
+        return ownerChannels.computeIfAbsent(address, target -> ManagedChannelBuilder.forTarget(target)
+                .usePlaintext()
+                .build());
+    }
+
+    // Runs a command on the node that takes writes for the concert. If the shards have moved since
+    // we looked, the owner we picked turns it away; look the map up again and retry once.
+    private <T> T command(String concertId, Function<ConcertCommandServiceGrpc.ConcertCommandServiceBlockingStub, T> call,
+                          ToLongFunction<T> version) {
+        ShardMap map = shardMap;
+        if (map == null) {
+            // While the leader is failing over, wait for its successor instead of failing
+            T response = call.apply(commandStub.withWaitForReady()
+                    .withDeadlineAfter(COMMAND_DEADLINE_MS, TimeUnit.MILLISECONDS));
+            lastWriteVersion = Math.max(lastWriteVersion, version.applyAsLong(response));
+            return response;
+        }
+        String owner = map.ownerOf(concertId);
+        try {
+            T response = call.apply(ConcertCommandServiceGrpc.newBlockingStub(ownerChannel(owner)));
+            ownerVersions.merge(owner, version.applyAsLong(response), Math::max);
+            return response;
+        } catch (StatusRuntimeException e) {
+            Status.Code code = e.getStatus().getCode();
+            if (code != Status.Code.FAILED_PRECONDITION && code != Status.Code.UNAVAILABLE) {
+                throw e;
+            }
+            loadShardMap();
+            if (shardMap == null || shardMap.ownerOf(concertId).equals(owner)) {
+                throw e;
+            }
+            return command(concertId, call, version);
         }
     }
+
+    // Reads from a replica, never older than our own last write; falls back to the leader if no
+    // replica answers in time
+    private ListConcertsResponse listConcerts() {
+        if (shardMap != null) {
+            return listShardedConcerts(shardMap);
+        }
+        ListConcertsRequest request = ListConcertsRequest.newBuilder().setMinVersion(lastWriteVersion).build();
+        try {
+            return readStub.withDeadlineAfter(READ_DEADLINE_MS, TimeUnit.MILLISECONDS).listConcerts(request);
+        } catch (StatusRuntimeException e) {
+            System.err.println("Replica read failed (" + e.getStatus().getCode() + "), reading from the leader");
+        }
+        return queryStub.withWaitForReady()
+                .withDeadlineAfter(COMMAND_DEADLINE_MS, TimeUnit.MILLISECONDS)
+                .listConcerts(request);
+    }
     
-    private void reconnectIfNeeded() {
-        if (channel.isShutdown() || channel.isTerminated()) {
+    // Each owner lists its own concerts. One that is mid-handoff can show up on both nodes; the
+    // copy with the later generation is the live one.
+    private ListConcertsResponse listShardedConcerts(ShardMap map) {
+        Map<String, Concert> concerts = new LinkedHashMap<>();
+        for (String owner : map.getMembers()) {
+            ListConcertsRequest request = ListConcertsRequest.newBuilder()
+                    .setMinVersion(ownerVersions.getOrDefault(owner, 0L))
+                    .build();
             try {
-                connectToServer();
-            } catch (IOException e) {
-                System.err.println("Failed to reconnect to server: " + e.getMessage());
+                ListConcertsResponse response = ConcertQueryServiceGrpc.newBlockingStub(ownerChannel(owner))
+                        .withDeadlineAfter(READ_DEADLINE_MS, TimeUnit.MILLISECONDS)
+                        .listConcerts(request);
+                for (Concert concert : response.getConcertsList()) {
+                    concerts.merge(concert.getId(), concert,
+                            (held, other) -> other.getGeneration() > held.getGeneration() ? other : held);
+                }
+            } catch (StatusRuntimeException e) {
+                System.err.println("Shard owner " + owner + " is unavailable (" + e.getStatus().getCode()
+                        + "), its concerts are left out");
             }
         }
+        return ListConcertsResponse.newBuilder().addAllConcerts(concerts.values()).build();
     }
     
     public void shutdown() throws InterruptedException {
-        if (channel != null) {
-            channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+        for (ManagedChannel ownerChannel : ownerChannels.values()) {
+            ownerChannel.shutdown();
+        }
+        readChannel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+        channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+        try {
+            nameServiceClient.close();
+        } catch (IOException ignore) {
         }
     }
     
@@ -80,12 +188,11 @@ public class ConcertClient {
                 System.out.print("Choose an option: ");
                 
                 String option = scanner.nextLine();
-                client.reconnectIfNeeded();
                 
                 try {
                     switch (option) {
                         case "1":
-                            ListConcertsResponse response = client.queryStub.listConcerts(Empty.newBuilder().build());
+                            ListConcertsResponse response = client.listConcerts();
                             System.out.println("Available Concerts:");
                             for (Concert concert : response.getConcertsList()) {
                                 System.out.println("- " + concert.getName() + " (ID: " + concert.getId() + ")");
@@ -107,7 +214,7 @@ public class ConcertClient {
                                     .setDate(date)
                                     .build();
                             AddConcertRequest req = AddConcertRequest.newBuilder().setConcert(concert).build();
-                            ConcertResponse resp = client.commandStub.addConcert(req);
+                            ConcertResponse resp = client.command(id, stub -> stub.addConcert(req), ConcertResponse::getVersion);
                             System.out.println(resp.getMessage());
                             break;
                         case "3":
@@ -123,14 +230,14 @@ public class ConcertClient {
                                     .setDate(newDate)
                                     .build();
                             UpdateConcertRequest updateReq = UpdateConcertRequest.newBuilder().setConcert(updatedConcert).build();
-                            ConcertResponse updateResp = client.commandStub.updateConcert(updateReq);
+                            ConcertResponse updateResp = client.command(idToUpdate, stub -> stub.updateConcert(updateReq), ConcertResponse::getVersion);
                             System.out.println(updateResp.getMessage());
                             break;
                         case "4":
                             System.out.print("Concert ID to cancel: ");
                             String cancelId = scanner.nextLine();
                             CancelConcertRequest cancelReq = CancelConcertRequest.newBuilder().setConcertId(cancelId).build();
-                            ConcertResponse cancelResp = client.commandStub.cancelConcert(cancelReq);
+                            ConcertResponse cancelResp = client.command(cancelId, stub -> stub.cancelConcert(cancelReq), ConcertResponse::getVersion);
                             System.out.println(cancelResp.getMessage());
                             break;
                         case "5":
@@ -151,7 +258,7 @@ public class ConcertClient {
                                     .setAfterParty(afterParty)
                                     .setCustomerId(customerId)
                                     .build();
-                            ReservationResponse reserveResp = client.commandStub.reserveTickets(reserveReq);
+                            ReservationResponse reserveResp = client.command(concertId, stub -> stub.reserveTickets(reserveReq), ReservationResponse::getVersion);
                             System.out.println(reserveResp.getMessage() + " Reservation ID: " + reserveResp.getReservationId());
                             break;
                         case "6":
@@ -169,13 +276,13 @@ public class ConcertClient {
                                     .setCount(seatsToAdd)
                                     .setAfterParty(false)
                                     .build();
-                            ConcertResponse stockResp = client.commandStub.addTicketStock(stockReq);
+                            ConcertResponse stockResp = client.command(concertIdToUpdate, stub -> stub.addTicketStock(stockReq), ConcertResponse::getVersion);
                             UpdateTicketPriceRequest priceReq = UpdateTicketPriceRequest.newBuilder()
                                     .setConcertId(concertIdToUpdate)
                                     .setTier(tierToUpdate)
                                     .setPrice(price)
                                     .build();
-                            ConcertResponse priceResp = client.commandStub.updateTicketPrice(priceReq);
+                            ConcertResponse priceResp = client.command(concertIdToUpdate, stub -> stub.updateTicketPrice(priceReq), ConcertResponse::getVersion);
                             System.out.println(stockResp.getMessage());
                             System.out.println(priceResp.getMessage());
                             break;
@@ -190,7 +297,7 @@ public class ConcertClient {
                                     .setCount(afterPartyTicketsToAdd)
                                     .setAfterParty(true)
                                     .build();
-                            ConcertResponse afterPartyResp = client.commandStub.addTicketStock(afterPartyReq);
+                            ConcertResponse afterPartyResp = client.command(concertIdToAddAfterParty, stub -> stub.addTicketStock(afterPartyReq), ConcertResponse::getVersion);
                             System.out.println(afterPartyResp.getMessage());
                             break;
                         case "8":
@@ -211,7 +318,7 @@ public class ConcertClient {
                                     .setAfterParty(afterPartyForBulk)
                                     .setGroupId(groupId)
                                     .build();
-                            ReservationResponse bulkResp = client.commandStub.bulkReserve(bulkReq);
+                            ReservationResponse bulkResp = client.command(concertIdToBulkReserve, stub -> stub.bulkReserve(bulkReq), ReservationResponse::getVersion);
                             System.out.println(bulkResp.getMessage() + " Reservation ID: " + bulkResp.getReservationId());
                             break;
                         case "9":
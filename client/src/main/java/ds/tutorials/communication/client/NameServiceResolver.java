@@ -0,0 +1,90 @@
+package ds.tutorials.communication.client;
+
+import distributed.NameServiceClient;
+import distributed.NameServiceClient.ServiceDetails;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.NameResolver;
+import io.grpc.Status;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Resolves a service to the addresses registered for it in the name service: every instance
+// registered with registerServiceInstance, or else the service's own entry. Resolves again
+// whenever the name service reports a change and whenever gRPC asks, e.g. after a connection
+// fails, so the channel's load balancer always has the live set of nodes.
+public class NameServiceResolver extends NameResolver {
+    private final NameServiceClient nameServiceClient;
+    private final String serviceName;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "name-service-resolver");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final Runnable onChange = this::refresh;
+    private volatile Listener2 listener;
+
+    public NameServiceResolver(NameServiceClient nameServiceClient, String serviceName) {
+        this.nameServiceClient = nameServiceClient;
+        this.serviceName = serviceName;
+    }
+
+    @Override
+    public String getServiceAuthority() {
+        return serviceName;
+    }
+
+    @Override
+    public void start(Listener2 listener) {
+        this.listener = listener;
+        nameServiceClient.addChangeListener(onChange);
+        refresh();
+    }
+
+    // Coalesces: a resolution already waiting to run will see the latest registrations
+    @Override
+    public void refresh() {
+        if (listener != null && scheduled.compareAndSet(false, true)) {
+            executor.execute(this::resolve);
+        }
+    }
+
+    // Runs on the resolver thread only
+    private void resolve() {
+        scheduled.set(false);
+        List<EquivalentAddressGroup> addresses = new ArrayList<>();
+        try {
+            List<ServiceDetails> instances = nameServiceClient.findServiceInstances(serviceName);
+            if (instances.isEmpty()) {
+                ServiceDetails service = nameServiceClient.lookupService(serviceName);
+                if (service != null) {
+                    instances.add(service);
+                }
+            }
+            for (ServiceDetails instance : instances) {
+                addresses.add(new EquivalentAddressGroup(new InetSocketAddress(instance.getIPAddress(), instance.getPort())));
+            }
+        } catch (IOException e) {
+            listener.onError(Status.UNAVAILABLE
+                    .withDescription("Failed to look up " + serviceName + ": " + e.getMessage()));
+            return;
+        }
+        if (addresses.isEmpty()) {
+            listener.onError(Status.UNAVAILABLE.withDescription("No instances of " + serviceName + " are registered"));
+            return;
+        }
+        listener.onResult(ResolutionResult.newBuilder().setAddresses(addresses).build());
+    }
+
+    @Override
+    public void shutdown() {
+        nameServiceClient.removeChangeListener(onChange);
+        executor.shutdownNow();
+    }
+}
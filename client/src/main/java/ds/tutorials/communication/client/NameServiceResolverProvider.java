@@ -0,0 +1,59 @@
+package ds.tutorials.communication.client;
+
+import distributed.NameServiceClient;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.NameResolver;
+import io.grpc.NameResolverProvider;
+
+import java.net.URI;
+
+// Lets a channel target a service by name, as nameservice:///<service>, sharing the given
+// client's cached lookups and watch with the rest of the process
+public class NameServiceResolverProvider extends NameResolverProvider {
+    private static final String SCHEME = "nameservice";
+
+    private final NameServiceClient nameServiceClient;
+
+    public NameServiceResolverProvider(NameServiceClient nameServiceClient) {
+        this.nameServiceClient = nameServiceClient;
+    }
+
+    private static String target(String serviceName) {
+        return SCHEME + ":///" + serviceName;
+    }
+
+    // The resolver is set per channel so it shares this client's name service lookups; gRPC would
+    // rather have it registered globally, which would tie every client in the process to one etcd.
+    // round_robin even for a single leader: it connects to a new address at once, where pick_first
+    // would first wait out the backoff it built up retrying the node that went away.
+    @SuppressWarnings("deprecation")
+    public ManagedChannelBuilder<?> channelBuilder(String serviceName) {
+        return ManagedChannelBuilder.forTarget(target(serviceName))
+                .nameResolverFactory(this)
+                .defaultLoadBalancingPolicy("round_robin")
+                .usePlaintext();
+    }
+
+    @Override
+    public NameResolver newNameResolver(URI targetUri, NameResolver.Args args) {
+        if (!SCHEME.equals(targetUri.getScheme()) || targetUri.getPath() == null || targetUri.getPath().length() < 2) {
+            return null;
+        }
+        return new NameServiceResolver(nameServiceClient, targetUri.getPath().substring(1));
+    }
+
+    @Override
+    public String getDefaultScheme() {
+        return SCHEME;
+    }
+
+    @Override
+    protected boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    protected int priority() {
+        return 5;
+    }
+}
@@ -0,0 +1,124 @@
+package ds.tutorials.communication.server;
+
+import concert.ConcertService;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+// Immutable, pre-built view of the catalogue for the query side. Writers only mark a concert
+// as changed; a single publisher thread rebuilds the changed entries and swaps in a new view,
+// so reads never build protobufs and never touch state that is being written.
+// A view's version is the store's applied sequence read before the rebuild. Every mutation up to
+// it marked its concert before counting as applied, so the view includes all of them (and
+// possibly some later ones).
+public class ConcertCatalog {
+    public static final class View {
+        private final long version;
+        private final ConcertService.ListConcertsResponse response;
+
+        View(long version, ConcertService.ListConcertsResponse response) {
+            this.version = version;
+            this.response = response;
+        }
+
+        // Every mutation up to this sequence is included in the view
+        public long getVersion() {
+            return version;
+        }
+
+        public ConcertService.ListConcertsResponse getResponse() {
+            return response;
+        }
+    }
+
+    private final Map<String, ConcertInventory> concerts;
+    // Only touched by the publisher thread
+    private final Map<String, ConcertService.Concert> built = new HashMap<>();
+    private final Set<String> changed = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean publishScheduled = new AtomicBoolean(false);
+    private final ExecutorService publisher;
+    private final LongSupplier appliedSequence;
+    private volatile View current = new View(0, ConcertService.ListConcertsResponse.getDefaultInstance());
+
+    public ConcertCatalog(Map<String, ConcertInventory> concerts, LongSupplier appliedSequence) {
+        this.concerts = concerts;
+        this.appliedSequence = appliedSequence;
+        this.publisher = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "concert-catalog-publisher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public View current() {
+        return current;
+    }
+
+    // The whole catalogue built from the live state, for a read that needs a later version than
+    // the published view has. Callers read version before calling, as for a view.
+    public ConcertService.ListConcertsResponse build(long version) {
+        ConcertService.ListConcertsResponse.Builder response = ConcertService.ListConcertsResponse.newBuilder()
+                .setVersion(version);
+        for (ConcertInventory concert : concerts.values()) {
+            response.addConcerts(concert.toConcert());
+        }
+        return response.build();
+    }
+
+    public void markChanged(String concertId) {
+        changed.add(concertId);
+        schedulePublish();
+    }
+
+    public void markAllChanged() {
+        changed.addAll(concerts.keySet());
+        schedulePublish();
+    }
+
+    // The applied sequence moved; a mutation counts as applied only after marking its concert, so
+    // the pass it triggered may have read the sequence too early to claim it
+    public void appliedSequenceAdvanced() {
+        schedulePublish();
+    }
+
+    private void schedulePublish() {
+        if (publishScheduled.compareAndSet(false, true)) {
+            publisher.execute(this::publish);
+        }
+    }
+
+    private void publish() {
+        // Cleared first so that changes made while rebuilding schedule another pass
+        publishScheduled.set(false);
+        long version = appliedSequence.getAsLong();
+        if (changed.isEmpty() && version == current.getVersion()) {
+            return;
+        }
+        Iterator<String> iterator = changed.iterator();
+        while (iterator.hasNext()) {
+            String concertId = iterator.next();
+            iterator.remove();
+            ConcertInventory concert = concerts.get(concertId);
+            if (concert == null) {
+                built.remove(concertId);
+            } else {
+                built.put(concertId, concert.toConcert());
+            }
+        }
+        current = new View(version, ConcertService.ListConcertsResponse.newBuilder()
+                .addAllConcerts(built.values())
+                .setVersion(version)
+                .build());
+    }
+
+    public void close() {
+        publisher.shutdownNow();
+    }
+}
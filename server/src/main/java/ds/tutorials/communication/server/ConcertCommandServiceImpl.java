@@ -2,6 +2,9 @@ package ds.tutorials.communication.server;
 
 import concert.ConcertCommandServiceGrpc;
 import concert.ConcertService;
+import distributed.ShardMap;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
 import ds.tutorials.synchronization.DistributedTxCoordinator;
 import ds.tutorials.synchronization.DistributedTxListener;
@@ -9,108 +12,240 @@ import ds.tutorials.synchronization.DistributedLock;
 import ds.tutorials.synchronization.DistributedTx;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
 import java.util.stream.Collectors;
-import org.apache.zookeeper.KeeperException;
 import java.io.*;
-import java.nio.file.*;
 
 public class ConcertCommandServiceImpl extends ConcertCommandServiceGrpc.ConcertCommandServiceImplBase implements DistributedTxListener {
-    // In-memory data store for concerts and reservations
-    private final Map<String, ConcertService.Concert.Builder> concerts = new ConcurrentHashMap<>();
-    private final Map<String, ConcertService.ReservationResponse> reservations = new ConcurrentHashMap<>();
-    private final DistributedTxCoordinator coordinator;
+    // In-memory data store for concerts and reservations, persisted through a write-ahead log
+    private final ConcertStore store;
+    private final Map<String, ConcertInventory> concerts;
     private final String nodeId;
-    private final String dataDir;
     private final String nameServiceAddress;
-    private final DistributedLock concertLock;
-    private final DistributedLock reservationLock;
+    private final ConcertLockManager locks;
+    private final ReservationBatcher batcher;
+    // One per batcher lane, each only used from its lane's thread
+    private final DistributedTxCoordinator[] coordinators;
+    // Set when concerts are sharded across nodes: writes are then only taken for the concerts
+    // this node owns under the latest shard map
+    private volatile String shardAddress;
+    private volatile ShardMap shardMap;
 
     public ConcertCommandServiceImpl(String nameServiceAddress, String dataDir) {
-        ds.tutorials.synchronization.DistributedTx.setZooKeeperURL("127.0.0.1:2181");
+        this(nameServiceAddress, dataDir, "127.0.0.1:2181");
+    }
+
+    public ConcertCommandServiceImpl(String nameServiceAddress, String dataDir, String zooKeeperAddress) {
+        this(nameServiceAddress, openStore(dataDir), zooKeeperAddress);
+    }
+
+    // Serves commands on a store that is already open, e.g. one kept up to date as a follower
+    public ConcertCommandServiceImpl(String nameServiceAddress, ConcertStore store, String zooKeeperAddress) {
+        this(nameServiceAddress, store, zooKeeperAddress, new ConcertLockManager());
+    }
+
+    public ConcertCommandServiceImpl(String nameServiceAddress, ConcertStore store, String zooKeeperAddress,
+                                     ConcertLockManager locks) {
+        DistributedTx.setZooKeeperURL(zooKeeperAddress);
+        DistributedLock.setZooKeeperURL(zooKeeperAddress);
         this.nodeId = UUID.randomUUID().toString();
-        this.coordinator = new DistributedTxCoordinator(this);
-        this.dataDir = dataDir;
         this.nameServiceAddress = nameServiceAddress;
+        this.locks = locks;
+        this.store = store;
+        this.concerts = store.getConcerts();
+        this.coordinators = new DistributedTxCoordinator[locks.getStripes()];
+        for (int i = 0; i < coordinators.length; i++) {
+            coordinators[i] = new DistributedTxCoordinator(this);
+        }
         try {
-            this.concertLock = new DistributedLock("concert-lock");
-            this.reservationLock = new DistributedLock("reservation-lock");
-        } catch (IOException | KeeperException | InterruptedException e) {
-            throw new RuntimeException("Failed to initialize distributed locks", e);
+            // Transactions left undecided by a coordinator that went down are aborted
+            int settled = coordinators[0].recover();
+            if (settled > 0) {
+                System.out.println("Settled " + settled + " in-doubt transactions");
+            }
+        } catch (Exception e) {
+            System.err.println("Failed to recover in-doubt transactions: " + e.getMessage());
         }
-        loadData();
+        // A lane per stripe, so a batch only ever waits for the one stripe its concerts share
+        this.batcher = new ReservationBatcher(this::reserveBatch, locks.getStripes(), locks::stripeFor);
     }
 
-    private void loadData() {
+    private static ConcertStore openStore(String dataDir) {
         try {
-            Files.createDirectories(Paths.get(dataDir));
-            loadConcerts();
-            loadReservations();
+            return new ConcertStore(dataDir);
         } catch (IOException e) {
-            System.err.println("Failed to load data: " + e.getMessage());
+            throw new RuntimeException("Failed to load data from " + dataDir, e);
         }
     }
 
-    private void loadConcerts() throws IOException {
-        File concertsFile = new File(dataDir, "concerts.dat");
-        if (concertsFile.exists()) {
-            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(concertsFile))) {
-                @SuppressWarnings("unchecked")
-                Map<String, ConcertService.Concert.Builder> loadedConcerts = (Map<String, ConcertService.Concert.Builder>) ois.readObject();
-                concerts.putAll(loadedConcerts);
-            } catch (ClassNotFoundException e) {
-                System.err.println("Failed to load concerts: " + e.getMessage());
-            }
+    private interface LockedOperation<T> {
+        // Runs with the concert's lock held
+        PendingResponse<T> run() throws Exception;
+    }
+
+    // A response that may only be sent once the log has been synced up to position
+    private static final class PendingResponse<T> {
+        static final long NOTHING_TO_SYNC = -1;
+
+        final T response;
+        final long position;
+
+        PendingResponse(T response, long position) {
+            this.response = response;
+            this.position = position;
         }
     }
 
-    private void loadReservations() throws IOException {
-        File reservationsFile = new File(dataDir, "reservations.dat");
-        if (reservationsFile.exists()) {
-            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(reservationsFile))) {
-                @SuppressWarnings("unchecked")
-                Map<String, ConcertService.ReservationResponse> loadedReservations = (Map<String, ConcertService.ReservationResponse>) ois.readObject();
-                reservations.putAll(loadedReservations);
-            } catch (ClassNotFoundException e) {
-                System.err.println("Failed to load reservations: " + e.getMessage());
+    // Runs a write under the concert's lock without tying up a gRPC thread: waiting for the lock and
+    // for the fsync are both future continuations. The lock is released as soon as the change is
+    // applied and logged; the response still waits until the change is on disk.
+    private <T> void writeLocked(String concertId, LockedOperation<T> operation,
+                                 Function<String, T> errorResponse, StreamObserver<T> responseObserver) {
+        locks.acquireAsync(concertId).thenCompose(ignored -> {
+            PendingResponse<T> pending;
+            try {
+                // Checked under the lock, which a handoff also takes, so nothing is written to a
+                // concert after it has been handed to another node
+                Status notOwned = checkOwnership(concertId);
+                if (notOwned != null) {
+                    return failed(notOwned.asRuntimeException());
+                }
+                pending = operation.run();
+            } catch (Exception e) {
+                return failed(e);
+            } finally {
+                locks.releaseAsync(concertId).whenComplete((released, error) -> {
+                    if (error != null) {
+                        System.err.println("Failed to release lock for " + concertId + ": " + error.getMessage());
+                    }
+                });
+            }
+            if (pending.position == PendingResponse.NOTHING_TO_SYNC) {
+                return CompletableFuture.completedFuture(pending.response);
             }
+            return store.durable(pending.position).thenApply(synced -> pending.response);
+        }).whenComplete((response, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                if (cause instanceof StatusRuntimeException) {
+                    responseObserver.onError(cause);
+                    return;
+                }
+                response = errorResponse.apply("Distributed lock error: " + cause.getMessage());
+            }
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
+        });
+    }
+
+    // Turns on shard ownership checks; address is how this node appears in the shard map
+    public void enableSharding(String address) {
+        this.shardAddress = address;
+    }
+
+    public void setShardMap(ShardMap shardMap) {
+        this.shardMap = shardMap;
+    }
+
+    public ShardMap getShardMap() {
+        return shardMap;
+    }
+
+    // Null if this node may write to the concert. Otherwise FAILED_PRECONDITION naming the owner,
+    // so the caller can look the shard map up again, or UNAVAILABLE before any map is known.
+    private Status checkOwnership(String concertId) {
+        String address = shardAddress;
+        if (address == null) {
+            return null;
+        }
+        ShardMap map = shardMap;
+        String owner = map == null ? null : map.ownerOf(concertId);
+        if (owner == null) {
+            return Status.UNAVAILABLE.withDescription("No shard map yet");
+        }
+        if (owner.equals(address)) {
+            return null;
         }
+        return Status.FAILED_PRECONDITION.withDescription("Concert " + concertId + " is owned by " + owner);
     }
 
-    private void saveData() {
+    // A client's add or update replaces the concert's details but not its generation. A concert
+    // created here starts at the epoch of the shard map that made us its owner. A copy handed over
+    // later from a previous owner was made under an earlier map, so its generation is no higher and
+    // acceptHandoff keeps the client's write rather than overwriting it.
+    private ConcertService.Concert keepGeneration(ConcertService.Concert concert) {
+        ConcertInventory existing = concerts.get(concert.getId());
+        ShardMap map = shardMap;
+        long generation = existing != null ? existing.getGeneration() : map == null ? 0 : map.getEpoch();
+        return concert.toBuilder().setGeneration(generation).build();
+    }
+
+    // Takes concerts handed over by their previous owner, with their reservations. A concert
+    // already held at the same or a later generation is kept: the copy arriving is either a stale
+    // repeat of an earlier handoff or older than one a client wrote here since we became its owner.
+    public int acceptHandoff(List<ConcertService.Concert> handedOff,
+                             List<ConcertService.ReservationResponse> reservations) throws Exception {
+        Set<String> concertIds = handedOff.stream().map(ConcertService.Concert::getId).collect(Collectors.toSet());
+        Set<String> taken = new HashSet<>();
+        long lastPosition = -1;
+        locks.acquireAll(concertIds);
         try {
-            saveConcerts();
-            saveReservations();
-        } catch (IOException e) {
-            System.err.println("Failed to save data: " + e.getMessage());
+            for (ConcertService.Concert concert : handedOff) {
+                ConcertInventory existing = concerts.get(concert.getId());
+                if (existing != null && existing.getGeneration() >= concert.getGeneration()) {
+                    continue;
+                }
+                lastPosition = store.commit(ConcertService.Mutation.newBuilder().setPutConcert(concert));
+                taken.add(concert.getId());
+            }
+            for (ConcertService.ReservationResponse reservation : reservations) {
+                if (taken.contains(reservation.getConcertId())) {
+                    lastPosition = store.commit(ConcertService.Mutation.newBuilder().setPutReservation(reservation));
+                }
+            }
+        } finally {
+            locks.releaseAll(concertIds);
+        }
+        if (lastPosition >= 0) {
+            store.awaitDurable(lastPosition);
         }
+        return taken.size();
     }
 
-    private void saveConcerts() throws IOException {
-        File concertsFile = new File(dataDir, "concerts.dat");
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(concertsFile))) {
-            oos.writeObject(new HashMap<>(concerts));
-        }
+    private static <T> CompletableFuture<T> failed(Throwable error) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(error);
+        return future;
     }
 
-    private void saveReservations() throws IOException {
-        File reservationsFile = new File(dataDir, "reservations.dat");
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(reservationsFile))) {
-            oos.writeObject(new HashMap<>(reservations));
-        }
+    private static ConcertService.ConcertResponse concertFailure(String message) {
+        return ConcertService.ConcertResponse.newBuilder()
+                .setSuccess(false)
+                .setMessage(message)
+                .build();
+    }
+
+    private static ConcertService.ReservationResponse reservationFailure(String message) {
+        return ConcertService.ReservationResponse.newBuilder()
+                .setSuccess(false)
+                .setMessage(message)
+                .build();
     }
 
     @Override
     public void onGlobalCommit() {
-        saveData();
+        // A committed batch is applied and logged by reserveBatch once perform() returns
     }
 
     @Override
     public void onGlobalAbort() {
-        // No need to save data on abort
+        // Nothing was applied before the decision, so there is nothing to undo
     }
 
-    private boolean performAtomicOperation(String operationId, Runnable operation) {
+    // Only called from a reservation batcher lane's thread, with that lane's coordinator
+    private boolean performAtomicOperation(DistributedTxCoordinator coordinator, String operationId, Runnable operation) {
         try {
             coordinator.start(operationId, nodeId);
             operation.run();
@@ -122,335 +257,279 @@ public class ConcertCommandServiceImpl extends ConcertCommandServiceGrpc.Concert
 
     @Override
     public void addConcert(ConcertService.AddConcertRequest request, StreamObserver<ConcertService.ConcertResponse> responseObserver) {
-        try {
-            concertLock.acquireLock();
-            try {
-                ConcertService.Concert concert = request.getConcert();
-                concerts.put(concert.getId(), concert.toBuilder());
-                ConcertService.ConcertResponse response = ConcertService.ConcertResponse.newBuilder()
-                        .setSuccess(true)
-                        .setMessage("Concert added successfully.")
-                        .setConcert(concert)
-                        .build();
-                responseObserver.onNext(response);
-                responseObserver.onCompleted();
-            } finally {
-                concertLock.releaseLock();
-            }
-        } catch (Exception e) {
+        writeLocked(request.getConcert().getId(), () -> {
+            ConcertService.Concert concert = keepGeneration(request.getConcert());
+            long position = store.commit(ConcertService.Mutation.newBuilder().setPutConcert(concert));
             ConcertService.ConcertResponse response = ConcertService.ConcertResponse.newBuilder()
-                    .setSuccess(false)
-                    .setMessage("Distributed lock error: " + e.getMessage())
+                    .setSuccess(true)
+                    .setMessage("Concert added successfully.")
+                    .setConcert(concert)
+                    // Read after the commit, so it covers this change (and possibly a few more)
+                    .setVersion(store.getSequence())
                     .build();
-            responseObserver.onNext(response);
-            responseObserver.onCompleted();
-        }
+            return new PendingResponse<>(response, position);
+        }, ConcertCommandServiceImpl::concertFailure, responseObserver);
     }
 
     @Override
     public void updateConcert(ConcertService.UpdateConcertRequest request, StreamObserver<ConcertService.ConcertResponse> responseObserver) {
-        try {
-            concertLock.acquireLock();
-            try {
-                ConcertService.Concert concert = request.getConcert();
-                concerts.put(concert.getId(), concert.toBuilder());
-                ConcertService.ConcertResponse response = ConcertService.ConcertResponse.newBuilder()
-                        .setSuccess(true)
-                        .setMessage("Concert updated successfully.")
-                        .setConcert(concert)
-                        .build();
-                responseObserver.onNext(response);
-                responseObserver.onCompleted();
-            } finally {
-                concertLock.releaseLock();
-            }
-        } catch (Exception e) {
+        writeLocked(request.getConcert().getId(), () -> {
+            ConcertService.Concert concert = keepGeneration(request.getConcert());
+            long position = store.commit(ConcertService.Mutation.newBuilder().setPutConcert(concert));
             ConcertService.ConcertResponse response = ConcertService.ConcertResponse.newBuilder()
-                    .setSuccess(false)
-                    .setMessage("Distributed lock error: " + e.getMessage())
+                    .setSuccess(true)
+                    .setMessage("Concert updated successfully.")
+                    .setConcert(concert)
+                    .setVersion(store.getSequence())
                     .build();
-            responseObserver.onNext(response);
-            responseObserver.onCompleted();
-        }
+            return new PendingResponse<>(response, position);
+        }, ConcertCommandServiceImpl::concertFailure, responseObserver);
     }
 
     @Override
     public void cancelConcert(ConcertService.CancelConcertRequest request, StreamObserver<ConcertService.ConcertResponse> responseObserver) {
-        try {
-            concertLock.acquireLock();
-            try {
-                String concertId = request.getConcertId();
-                concerts.remove(concertId);
-                ConcertService.ConcertResponse response = ConcertService.ConcertResponse.newBuilder()
-                        .setSuccess(true)
-                        .setMessage("Concert cancelled successfully.")
-                        .build();
-                responseObserver.onNext(response);
-                responseObserver.onCompleted();
-            } finally {
-                concertLock.releaseLock();
-            }
-        } catch (Exception e) {
+        writeLocked(request.getConcertId(), () -> {
+            long position = store.commit(ConcertService.Mutation.newBuilder().setCancelConcert(request));
             ConcertService.ConcertResponse response = ConcertService.ConcertResponse.newBuilder()
-                    .setSuccess(false)
-                    .setMessage("Distributed lock error: " + e.getMessage())
+                    .setSuccess(true)
+                    .setMessage("Concert cancelled successfully.")
+                    .setVersion(store.getSequence())
                     .build();
-            responseObserver.onNext(response);
-            responseObserver.onCompleted();
-        }
+            return new PendingResponse<>(response, position);
+        }, ConcertCommandServiceImpl::concertFailure, responseObserver);
     }
 
     @Override
     public void addTicketStock(ConcertService.AddTicketStockRequest request, StreamObserver<ConcertService.ConcertResponse> responseObserver) {
-        try {
-            concertLock.acquireLock();
-            try {
-                String concertId = request.getConcertId();
-                ConcertService.Concert.Builder concert = concerts.get(concertId);
-                if (concert == null) {
-                    ConcertService.ConcertResponse response = ConcertService.ConcertResponse.newBuilder()
-                            .setSuccess(false)
-                            .setMessage("Concert not found.")
-                            .build();
-                    responseObserver.onNext(response);
-                    responseObserver.onCompleted();
-                    return;
-                }
-                if (request.getAfterParty()) {
-                    int current = concert.getAfterPartyTickets();
-                    concert.setAfterPartyTickets(current + request.getCount());
-                } else {
-                    Map<String, Integer> seatTiers = new HashMap<>(concert.getSeatTiersMap());
-                    seatTiers.put(request.getTier(), seatTiers.getOrDefault(request.getTier(), 0) + request.getCount());
-                    concert.putAllSeatTiers(seatTiers);
-                    // Set price if provided and > 0
-                    if (request.getPrice() > 0) {
-                        Map<String, Double> prices = new HashMap<>(concert.getPricesMap());
-                        prices.put(request.getTier(), request.getPrice());
-                        concert.putAllPrices(prices);
-                    }
-                }
-                concerts.put(concertId, concert);
-                ConcertService.ConcertResponse response = ConcertService.ConcertResponse.newBuilder()
-                        .setSuccess(true)
-                        .setMessage("Ticket stock updated.")
-                        .setConcert(concert.build())
-                        .build();
-                responseObserver.onNext(response);
-                responseObserver.onCompleted();
-            } finally {
-                concertLock.releaseLock();
+        writeLocked(request.getConcertId(), () -> {
+            ConcertInventory concert = concerts.get(request.getConcertId());
+            if (concert == null) {
+                return new PendingResponse<>(concertFailure("Concert not found."), PendingResponse.NOTHING_TO_SYNC);
             }
-        } catch (Exception e) {
+            long position = store.commit(ConcertService.Mutation.newBuilder().setAddTicketStock(request));
             ConcertService.ConcertResponse response = ConcertService.ConcertResponse.newBuilder()
-                    .setSuccess(false)
-                    .setMessage("Distributed lock error: " + e.getMessage())
+                    .setSuccess(true)
+                    .setMessage("Ticket stock updated.")
+                    .setConcert(concert.toConcert())
+                    .setVersion(store.getSequence())
                     .build();
-            responseObserver.onNext(response);
-            responseObserver.onCompleted();
-        }
+            return new PendingResponse<>(response, position);
+        }, ConcertCommandServiceImpl::concertFailure, responseObserver);
     }
 
     @Override
     public void updateTicketPrice(ConcertService.UpdateTicketPriceRequest request, StreamObserver<ConcertService.ConcertResponse> responseObserver) {
-        try {
-            concertLock.acquireLock();
-            try {
-                String concertId = request.getConcertId();
-                ConcertService.Concert.Builder concert = concerts.get(concertId);
-                if (concert == null) {
-                    ConcertService.ConcertResponse response = ConcertService.ConcertResponse.newBuilder()
-                            .setSuccess(false)
-                            .setMessage("Concert not found.")
-                            .build();
-                    responseObserver.onNext(response);
-                    responseObserver.onCompleted();
-                    return;
-                }
-                Map<String, Double> prices = new HashMap<>(concert.getPricesMap());
-                prices.put(request.getTier(), request.getPrice());
-                concert.putAllPrices(prices);
-                concerts.put(concertId, concert);
-                ConcertService.ConcertResponse response = ConcertService.ConcertResponse.newBuilder()
-                        .setSuccess(true)
-                        .setMessage("Ticket price updated.")
-                        .setConcert(concert.build())
-                        .build();
-                responseObserver.onNext(response);
-                responseObserver.onCompleted();
-            } finally {
-                concertLock.releaseLock();
+        writeLocked(request.getConcertId(), () -> {
+            ConcertInventory concert = concerts.get(request.getConcertId());
+            if (concert == null) {
+                return new PendingResponse<>(concertFailure("Concert not found."), PendingResponse.NOTHING_TO_SYNC);
             }
-        } catch (Exception e) {
+            long position = store.commit(ConcertService.Mutation.newBuilder().setUpdateTicketPrice(request));
             ConcertService.ConcertResponse response = ConcertService.ConcertResponse.newBuilder()
-                    .setSuccess(false)
-                    .setMessage("Distributed lock error: " + e.getMessage())
+                    .setSuccess(true)
+                    .setMessage("Ticket price updated.")
+                    .setConcert(concert.toConcert())
+                    .setVersion(store.getSequence())
                     .build();
+            return new PendingResponse<>(response, position);
+        }, ConcertCommandServiceImpl::concertFailure, responseObserver);
+    }
+
+    @Override
+    public void reserveTickets(ConcertService.ReserveTicketsRequest request, StreamObserver<ConcertService.ReservationResponse> responseObserver) {
+        Status notOwned = checkOwnership(request.getConcertId());
+        if (notOwned != null) {
+            responseObserver.onError(notOwned.asRuntimeException());
+            return;
+        }
+        // Committed together with whatever other reservations arrive while the previous batch is in flight
+        batcher.submit(request).whenComplete((response, error) -> {
+            if (error != null) {
+                response = reservationFailure("Failed to reserve tickets: " + error.getMessage());
+            }
             responseObserver.onNext(response);
             responseObserver.onCompleted();
-        }
+        });
     }
 
     @Override
-    public void reserveTickets(ConcertService.ReserveTicketsRequest request, StreamObserver<ConcertService.ReservationResponse> responseObserver) {
+    public void reserveTicketsBatch(ConcertService.ReserveTicketsBatchRequest request, StreamObserver<ConcertService.ReserveTicketsBatchResponse> responseObserver) {
+        batcher.submitAll(request.getReservationsList()).whenComplete((results, error) -> {
+            if (error != null) {
+                results = Collections.nCopies(request.getReservationsCount(),
+                        reservationFailure("Failed to reserve tickets: " + error.getMessage()));
+            }
+            responseObserver.onNext(ConcertService.ReserveTicketsBatchResponse.newBuilder()
+                    .addAllResults(results)
+                    .build());
+            responseObserver.onCompleted();
+        });
+    }
+
+    // Reserves every item under the lane's stripe lock and one coordinator transaction. A rejected
+    // item (sold out, unknown concert) fails on its own without aborting the rest of the batch.
+    // Items are only checked and set aside until the transaction commits; nothing is taken or
+    // logged before then, so an abort leaves the inventory as it was.
+    // Runs on the lane's batcher thread, which is the only place the blocking 2PC round trips happen.
+    private List<ConcertService.ReservationResponse> reserveBatch(int lane, List<ConcertService.ReserveTicketsRequest> requests) {
+        ConcertService.ReservationResponse[] results = new ConcertService.ReservationResponse[requests.size()];
+        if (requests.isEmpty()) {
+            return Arrays.asList(results);
+        }
+        Set<String> concertIds = requests.stream()
+                .map(ConcertService.ReserveTicketsRequest::getConcertId)
+                .collect(Collectors.toSet());
         try {
-            reservationLock.acquireLock();
-            try {
-                final ConcertService.ReservationResponse[] reservationHolder = new ConcertService.ReservationResponse[1];
-                String operationId = "reserve_" + UUID.randomUUID().toString();
-                boolean success = performAtomicOperation(operationId, () -> {
-                    String concertId = request.getConcertId();
-                    ConcertService.Concert.Builder concert = concerts.get(concertId);
-                    if (concert == null) {
-                        throw new RuntimeException("Concert not found");
-                    }
-                    
-                    synchronized (concert) {
-                        int availableSeats = concert.getSeatTiersMap().getOrDefault(request.getTier(), 0);
-                        int availableAfterParty = concert.getAfterPartyTickets();
-                        
-                        if (request.getCount() > availableSeats) {
-                            throw new RuntimeException("Not enough seats available");
-                        }
-                        
-                        if (request.getAfterParty() && request.getCount() > availableAfterParty) {
-                            throw new RuntimeException("Not enough after-party tickets available");
-                        }
-                        
-                        // Update seat tiers
-                        Map<String, Integer> seatTiers = new HashMap<>(concert.getSeatTiersMap());
-                        seatTiers.put(request.getTier(), availableSeats - request.getCount());
-                        concert.putAllSeatTiers(seatTiers);
-                        
-                        // Update after-party tickets if needed
-                        if (request.getAfterParty()) {
-                            concert.setAfterPartyTickets(availableAfterParty - request.getCount());
-                        }
-                        
-                        // Save the updated concert
-                        concerts.put(concertId, concert);
-                        
-                        // Create and store the reservation
-                        String reservationId = UUID.randomUUID().toString();
-                        ConcertService.ReservationResponse response = ConcertService.ReservationResponse.newBuilder()
-                                .setSuccess(true)
-                                .setMessage("Reservation successful")
-                                .setReservationId(reservationId)
-                                .build();
-                        reservations.put(reservationId, response);
-                        reservationHolder[0] = response;
-                        
-                        // Save the data to disk
-                        saveData();
+            locks.acquireAll(concertIds);
+        } catch (Exception e) {
+            Arrays.fill(results, reservationFailure("Distributed lock error: " + e.getMessage()));
+            return Arrays.asList(results);
+        }
+        try {
+            ConcertService.ReservationRecord[] staged = new ConcertService.ReservationRecord[requests.size()];
+            String operationId = "reserve_batch_" + UUID.randomUUID().toString();
+            boolean success = performAtomicOperation(coordinators[lane], operationId, () -> stageBatch(requests, staged, results));
+            if (!success) {
+                // Every item that was staged, or never got as far as staging, had nothing taken
+                for (int i = 0; i < results.length; i++) {
+                    if (results[i] == null) {
+                        results[i] = reservationFailure("Failed to reserve tickets");
                     }
-                });
-                
-                if (success && reservationHolder[0] != null) {
-                    responseObserver.onNext(reservationHolder[0]);
-                } else {
-                    responseObserver.onNext(ConcertService.ReservationResponse.newBuilder()
-                            .setSuccess(false)
-                            .setMessage("Failed to reserve tickets")
+                }
+                return Arrays.asList(results);
+            }
+            applyBatch(staged, results);
+        } finally {
+            try {
+                locks.releaseAll(concertIds);
+            } catch (Exception e) {
+                System.err.println("Failed to release locks for " + concertIds + ": " + e.getMessage());
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    // Fills in the failure for each item that can't go ahead and the record to apply for the rest.
+    // The stripe locks are held, so the seats counted here are still there when the batch applies.
+    private void stageBatch(List<ConcertService.ReserveTicketsRequest> requests,
+                            ConcertService.ReservationRecord[] staged, ConcertService.ReservationResponse[] results) {
+        Map<String, Integer> seatsHeld = new HashMap<>();
+        Map<String, Integer> afterPartyHeld = new HashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            ConcertService.ReserveTicketsRequest request = requests.get(i);
+            Status notOwned = checkOwnership(request.getConcertId());
+            if (notOwned != null) {
+                // The shard moved after the request was let in
+                results[i] = reservationFailure(notOwned.getDescription());
+                continue;
+            }
+            ConcertService.ReservationRecord record = reservationRecord(request.getConcertId(), request.getTier(),
+                    request.getCount(), request.getAfterParty(), ConcertService.ReservationResponse.newBuilder()
+                            .setSuccess(true)
+                            .setMessage("Reservation successful")
+                            .setReservationId(UUID.randomUUID().toString())
                             .build());
+            String tierKey = request.getConcertId() + "/" + request.getTier();
+            try {
+                store.checkReservation(record, seatsHeld.getOrDefault(tierKey, 0),
+                        afterPartyHeld.getOrDefault(request.getConcertId(), 0));
+            } catch (ConcertStore.ReservationRejectedException e) {
+                results[i] = reservationFailure(e.getMessage());
+                continue;
+            }
+            seatsHeld.merge(tierKey, request.getCount(), Integer::sum);
+            if (request.getAfterParty()) {
+                afterPartyHeld.merge(request.getConcertId(), request.getCount(), Integer::sum);
+            }
+            staged[i] = record;
+        }
+    }
+
+    // Takes and logs the staged reservations of a committed batch. An item is only reported as
+    // reserved once its record is on disk; one that could not be logged was never taken.
+    private void applyBatch(ConcertService.ReservationRecord[] staged, ConcertService.ReservationResponse[] results) {
+        long lastPosition = -1;
+        String failure = null;
+        for (int i = 0; i < staged.length; i++) {
+            if (staged[i] == null) {
+                continue;
+            }
+            if (failure != null) {
+                results[i] = reservationFailure(failure);
+                continue;
+            }
+            try {
+                lastPosition = store.reserve(staged[i]);
+                results[i] = staged[i].getReservation();
+            } catch (ConcertStore.ReservationRejectedException e) {
+                results[i] = reservationFailure(e.getMessage());
+            } catch (IOException e) {
+                failure = "Failed to reserve tickets: " + e.getMessage();
+                results[i] = reservationFailure(failure);
+            }
+        }
+        if (lastPosition < 0) {
+            return;
+        }
+        try {
+            // One fsync covers every record in the batch
+            store.awaitDurable(lastPosition);
+        } catch (IOException e) {
+            // Logged but maybe not on disk, the same outcome a failed sync has for any other write
+            for (int i = 0; i < results.length; i++) {
+                if (results[i].getSuccess()) {
+                    results[i] = reservationFailure("Failed to sync reservation: " + e.getMessage());
                 }
-                responseObserver.onCompleted();
-            } finally {
-                reservationLock.releaseLock();
             }
-        } catch (Exception e) {
-            ConcertService.ReservationResponse response = ConcertService.ReservationResponse.newBuilder()
-                    .setSuccess(false)
-                    .setMessage("Distributed lock error: " + e.getMessage())
-                    .build();
-            responseObserver.onNext(response);
-            responseObserver.onCompleted();
+            return;
+        }
+        long version = store.getSequence();
+        for (int i = 0; i < results.length; i++) {
+            if (results[i].getSuccess()) {
+                results[i] = results[i].toBuilder().setVersion(version).build();
+            }
         }
     }
 
     @Override
     public void bulkReserve(ConcertService.BulkReserveRequest request, StreamObserver<ConcertService.ReservationResponse> responseObserver) {
-        try {
-            reservationLock.acquireLock();
+        writeLocked(request.getConcertId(), () -> {
+            ConcertService.ReservationResponse reservation = ConcertService.ReservationResponse.newBuilder()
+                    .setSuccess(true)
+                    .setMessage("Bulk reservation successful.")
+                    .setReservationId(UUID.randomUUID().toString())
+                    .build();
             try {
-                String concertId = request.getConcertId();
-                ConcertService.Concert.Builder concert = concerts.get(concertId);
-                if (concert == null) {
-                    ConcertService.ReservationResponse response = ConcertService.ReservationResponse.newBuilder()
-                            .setSuccess(false)
-                            .setMessage("Concert not found.")
-                            .build();
-                    responseObserver.onNext(response);
-                    responseObserver.onCompleted();
-                    return;
-                }
-                
-                synchronized (concert) {
-                    int availableSeats = concert.getSeatTiersMap().getOrDefault(request.getTier(), 0);
-                    int availableAfterParty = concert.getAfterPartyTickets();
-                    
-                    if (request.getCount() > availableSeats) {
-                        ConcertService.ReservationResponse response = ConcertService.ReservationResponse.newBuilder()
-                                .setSuccess(false)
-                                .setMessage("Not enough seats available.")
-                                .build();
-                        responseObserver.onNext(response);
-                        responseObserver.onCompleted();
-                        return;
-                    }
-                    
-                    if (request.getAfterParty() && request.getCount() > availableAfterParty) {
-                        ConcertService.ReservationResponse response = ConcertService.ReservationResponse.newBuilder()
-                                .setSuccess(false)
-                                .setMessage("Not enough after-party tickets available.")
-                                .build();
-                        responseObserver.onNext(response);
-                        responseObserver.onCompleted();
-                        return;
-                    }
-                    
-                    // Update seat tiers
-                    Map<String, Integer> seatTiers = new HashMap<>(concert.getSeatTiersMap());
-                    seatTiers.put(request.getTier(), availableSeats - request.getCount());
-                    concert.putAllSeatTiers(seatTiers);
-                    
-                    // Update after-party tickets if needed
-                    if (request.getAfterParty()) {
-                        concert.setAfterPartyTickets(availableAfterParty - request.getCount());
-                    }
-                    
-                    // Save the updated concert
-                    concerts.put(concertId, concert);
-                    
-                    // Create and store the reservation
-                    String reservationId = UUID.randomUUID().toString();
-                    ConcertService.ReservationResponse response = ConcertService.ReservationResponse.newBuilder()
-                            .setSuccess(true)
-                            .setMessage("Bulk reservation successful.")
-                            .setReservationId(reservationId)
-                            .build();
-                    reservations.put(reservationId, response);
-                    
-                    // Save the data to disk
-                    saveData();
-                    
-                    responseObserver.onNext(response);
-                    responseObserver.onCompleted();
-                }
-            } finally {
-                reservationLock.releaseLock();
+                long position = store.reserve(reservationRecord(request.getConcertId(), request.getTier(),
+                        request.getCount(), request.getAfterParty(), reservation));
+                return new PendingResponse<>(reservation.toBuilder().setVersion(store.getSequence()).build(), position);
+            } catch (ConcertStore.ReservationRejectedException e) {
+                return new PendingResponse<>(reservationFailure(e.getMessage()), PendingResponse.NOTHING_TO_SYNC);
             }
-        } catch (Exception e) {
-            ConcertService.ReservationResponse response = ConcertService.ReservationResponse.newBuilder()
-                    .setSuccess(false)
-                    .setMessage("Distributed lock error: " + e.getMessage())
-                    .build();
-            responseObserver.onNext(response);
-            responseObserver.onCompleted();
-        }
+        }, ConcertCommandServiceImpl::reservationFailure, responseObserver);
+    }
+
+    private static ConcertService.ReservationRecord reservationRecord(String concertId, String tier, int count,
+                                                                    boolean afterParty, ConcertService.ReservationResponse reservation) {
+        return ConcertService.ReservationRecord.newBuilder()
+                .setConcertId(concertId)
+                .setTier(tier)
+                .setCount(count)
+                .setAfterParty(afterParty)
+                .setReservation(reservation.toBuilder().setConcertId(concertId))
+                .build();
     }
 
-    // Expose concerts map for query service
-    public Map<String, ConcertService.Concert.Builder> getConcerts() {
+    public Map<String, ConcertInventory> getConcerts() {
         return concerts;
     }
+
+    // Exposes the catalogue, index and change feed for the query service
+    public ConcertLockManager getLocks() {
+        return locks;
+    }
+
+    public ConcertStore getStore() {
+        return store;
+    }
 } 
\ No newline at end of file
@@ -0,0 +1,149 @@
+package ds.tutorials.communication.server;
+
+import concert.ConcertService;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+// Sorted secondary indexes (by date, by name) over the catalogue. They are updated as concerts
+// are added, updated or cancelled, so filtered and paginated listings only walk matching entries.
+public class ConcertIndex {
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    public static final int MAX_PAGE_SIZE = 1000;
+    // Index keys are "<sort value>\0<concert id>" so equal dates or names stay distinct and ordered
+    private static final char SEPARATOR = '\u0000';
+    private static final String DATE_TOKEN = "d:";
+    private static final String NAME_TOKEN = "n:";
+
+    private final NavigableSet<String> byDate = new ConcurrentSkipListSet<>();
+    private final NavigableSet<String> byName = new ConcurrentSkipListSet<>();
+    private final Map<String, ConcertService.Concert> indexed = new ConcurrentHashMap<>();
+
+    public synchronized void put(ConcertService.Concert concert) {
+        remove(concert.getId());
+        indexed.put(concert.getId(), concert);
+        byDate.add(dateKey(concert));
+        byName.add(nameKey(concert));
+    }
+
+    public synchronized void remove(String concertId) {
+        ConcertService.Concert previous = indexed.remove(concertId);
+        if (previous != null) {
+            byDate.remove(dateKey(previous));
+            byName.remove(nameKey(previous));
+        }
+    }
+
+    public static boolean isFiltered(ConcertService.ListConcertsRequest request) {
+        return request.getPageSize() > 0 || !request.getPageToken().isEmpty() || !request.getDateFrom().isEmpty()
+                || !request.getDateTo().isEmpty() || !request.getNamePrefix().isEmpty()
+                || !request.getAvailableTier().isEmpty();
+    }
+
+    // Walks the name index when a prefix is given, otherwise the date index, and applies the remaining filters per entry
+    public ConcertService.ListConcertsResponse list(ConcertService.ListConcertsRequest request,
+                                                    Map<String, ConcertInventory> concerts) {
+        boolean useNameIndex = !request.getNamePrefix().isEmpty();
+        String tokenPrefix = useNameIndex ? NAME_TOKEN : DATE_TOKEN;
+        NavigableSet<String> range = useNameIndex ? nameRange(request.getNamePrefix()) : dateRange(request);
+        if (!request.getPageToken().isEmpty()) {
+            String after = decodeToken(request.getPageToken(), tokenPrefix);
+            range = range.tailSet(after, false);
+        }
+        int pageSize = request.getPageSize() <= 0 ? DEFAULT_PAGE_SIZE : Math.min(request.getPageSize(), MAX_PAGE_SIZE);
+
+        ConcertService.ListConcertsResponse.Builder response = ConcertService.ListConcertsResponse.newBuilder();
+        Iterator<String> keys = range.iterator();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            String concertId = key.substring(key.indexOf(SEPARATOR) + 1);
+            ConcertInventory concert = concerts.get(concertId);
+            if (concert == null || !matches(request, concertId, concert)) {
+                continue;
+            }
+            response.addConcerts(concert.toConcert());
+            if (response.getConcertsCount() == pageSize) {
+                if (keys.hasNext()) {
+                    response.setNextPageToken(encodeToken(tokenPrefix, key));
+                }
+                break;
+            }
+        }
+        return response.build();
+    }
+
+    private boolean matches(ConcertService.ListConcertsRequest request, String concertId, ConcertInventory concert) {
+        ConcertService.Concert details = indexed.get(concertId);
+        if (details == null) {
+            return false;
+        }
+        // The date index already applies the range; the name index still needs it checked
+        if (!request.getNamePrefix().isEmpty()) {
+            if (!request.getDateFrom().isEmpty() && details.getDate().compareTo(request.getDateFrom()) < 0) {
+                return false;
+            }
+            if (!request.getDateTo().isEmpty() && details.getDate().compareTo(request.getDateTo()) > 0) {
+                return false;
+            }
+        }
+        return request.getAvailableTier().isEmpty() || concert.getAvailableSeats(request.getAvailableTier()) > 0;
+    }
+
+    private NavigableSet<String> dateRange(ConcertService.ListConcertsRequest request) {
+        NavigableSet<String> range = byDate;
+        if (!request.getDateFrom().isEmpty()) {
+            range = range.tailSet(request.getDateFrom(), true);
+        }
+        if (!request.getDateTo().isEmpty()) {
+            // Every key for dateTo sorts before dateTo + '\1', whatever the concert's id
+            range = range.headSet(request.getDateTo() + (char) (SEPARATOR + 1), false);
+        }
+        return range;
+    }
+
+    private NavigableSet<String> nameRange(String prefix) {
+        String from = prefix.toLowerCase(Locale.ROOT);
+        // Every key starting with from sorts before from with its last char moved up by one.
+        // Trailing U+FFFF chars can't move up, so the bound moves up at the char before them.
+        int last = from.length() - 1;
+        while (last >= 0 && from.charAt(last) == Character.MAX_VALUE) {
+            last--;
+        }
+        if (last < 0) {
+            return byName.tailSet(from, true);
+        }
+        String to = from.substring(0, last) + (char) (from.charAt(last) + 1);
+        return byName.subSet(from, true, to, false);
+    }
+
+    private static String dateKey(ConcertService.Concert concert) {
+        return concert.getDate() + SEPARATOR + concert.getId();
+    }
+
+    private static String nameKey(ConcertService.Concert concert) {
+        return concert.getName().toLowerCase(Locale.ROOT) + SEPARATOR + concert.getId();
+    }
+
+    private static String encodeToken(String prefix, String key) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString((prefix + key).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decodeToken(String token, String expectedPrefix) {
+        String decoded;
+        try {
+            decoded = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Malformed page token");
+        }
+        if (!decoded.startsWith(expectedPrefix)) {
+            throw new IllegalArgumentException("Page token does not match the requested filters");
+        }
+        return decoded.substring(expectedPrefix.length());
+    }
+}
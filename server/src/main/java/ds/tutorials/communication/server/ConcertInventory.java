@@ -0,0 +1,181 @@
+package ds.tutorials.communication.server;
+
+import concert.ConcertService;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+// Live seat counts for one concert. Tier names are interned to slots of a primitive counter
+// array, so a reservation is a compare-and-decrement with no locking or allocation.
+// The Concert protobuf is only built when someone asks for it.
+public class ConcertInventory {
+    // Marks a slot whose value has been copied into a larger array; readers retry on the new one
+    private static final int MOVED = Integer.MIN_VALUE;
+    private static final int INITIAL_CAPACITY = 4;
+
+    public enum ReserveResult {
+        RESERVED,
+        NOT_ENOUGH_SEATS,
+        NOT_ENOUGH_AFTER_PARTY
+    }
+
+    private static final class Tiers {
+        final Map<String, Integer> slots;
+        final AtomicIntegerArray seats;
+
+        Tiers(Map<String, Integer> slots, AtomicIntegerArray seats) {
+            this.slots = slots;
+            this.seats = seats;
+        }
+    }
+
+    // Id, name, date and prices; seat counts live in the counters below
+    private volatile ConcertService.Concert details;
+    private volatile Tiers tiers;
+    private final AtomicInteger afterPartyTickets;
+
+    public ConcertInventory(ConcertService.Concert concert) {
+        this.details = concert.toBuilder().clearSeatTiers().setAfterPartyTickets(0).build();
+        Map<String, Integer> slots = new HashMap<>();
+        AtomicIntegerArray seats = new AtomicIntegerArray(Math.max(INITIAL_CAPACITY, concert.getSeatTiersCount()));
+        for (Map.Entry<String, Integer> tier : concert.getSeatTiersMap().entrySet()) {
+            int slot = slots.size();
+            slots.put(tier.getKey().intern(), slot);
+            seats.set(slot, tier.getValue());
+        }
+        this.tiers = new Tiers(Collections.unmodifiableMap(slots), seats);
+        this.afterPartyTickets = new AtomicInteger(concert.getAfterPartyTickets());
+    }
+
+    public String getId() {
+        return details.getId();
+    }
+
+    // How many times the concert has moved between shard owners
+    public long getGeneration() {
+        return details.getGeneration();
+    }
+
+    public int getAvailableSeats(String tier) {
+        while (true) {
+            Tiers current = tiers;
+            Integer slot = current.slots.get(tier);
+            if (slot == null) {
+                return 0;
+            }
+            int available = current.seats.get(slot);
+            if (available != MOVED) {
+                return available;
+            }
+        }
+    }
+
+    public int getAfterPartyTickets() {
+        return afterPartyTickets.get();
+    }
+
+    public ReserveResult tryReserve(String tier, int count, boolean afterParty) {
+        if (!tryTakeSeats(tier, count)) {
+            return ReserveResult.NOT_ENOUGH_SEATS;
+        }
+        if (afterParty && !tryTake(afterPartyTickets, count)) {
+            addSeats(tier, count);
+            return ReserveResult.NOT_ENOUGH_AFTER_PARTY;
+        }
+        return ReserveResult.RESERVED;
+    }
+
+    private boolean tryTakeSeats(String tier, int count) {
+        while (true) {
+            Tiers current = tiers;
+            Integer slot = current.slots.get(tier);
+            if (slot == null) {
+                return count <= 0;
+            }
+            int available = current.seats.get(slot);
+            if (available == MOVED) {
+                continue;
+            }
+            if (available < count) {
+                return false;
+            }
+            if (current.seats.compareAndSet(slot, available, available - count)) {
+                return true;
+            }
+        }
+    }
+
+    private static boolean tryTake(AtomicInteger counter, int count) {
+        while (true) {
+            int available = counter.get();
+            if (available < count) {
+                return false;
+            }
+            if (counter.compareAndSet(available, available - count)) {
+                return true;
+            }
+        }
+    }
+
+    // Adds (or with a negative count, removes) seats in a tier, creating the tier if needed
+    public void addSeats(String tier, int count) {
+        while (true) {
+            Tiers current = tiers;
+            Integer slot = current.slots.get(tier);
+            if (slot == null) {
+                addTier(tier);
+                continue;
+            }
+            int available = current.seats.get(slot);
+            if (available == MOVED) {
+                continue;
+            }
+            if (current.seats.compareAndSet(slot, available, available + count)) {
+                return;
+            }
+        }
+    }
+
+    public void addAfterPartyTickets(int count) {
+        afterPartyTickets.addAndGet(count);
+    }
+
+    public synchronized void setPrice(String tier, double price) {
+        details = details.toBuilder().putPrices(tier, price).build();
+    }
+
+    // Structural changes are rare, so they are serialized and published copy-on-write
+    private synchronized void addTier(String tier) {
+        Tiers current = tiers;
+        if (current.slots.containsKey(tier)) {
+            return;
+        }
+        Map<String, Integer> slots = new HashMap<>(current.slots);
+        int slot = slots.size();
+        slots.put(tier.intern(), slot);
+        AtomicIntegerArray seats = current.seats;
+        if (slot >= seats.length()) {
+            seats = new AtomicIntegerArray(seats.length() * 2);
+            for (int i = 0; i < current.seats.length(); i++) {
+                seats.set(i, current.seats.getAndSet(i, MOVED));
+            }
+        }
+        tiers = new Tiers(Collections.unmodifiableMap(slots), seats);
+    }
+
+    public ConcertService.Concert toConcert() {
+        Tiers current = tiers;
+        ConcertService.Concert.Builder concert = details.toBuilder();
+        for (Map.Entry<String, Integer> tier : current.slots.entrySet()) {
+            int seats = current.seats.get(tier.getValue());
+            if (seats == MOVED) {
+                return toConcert();
+            }
+            concert.putSeatTiers(tier.getKey(), seats);
+        }
+        return concert.setAfterPartyTickets(afterPartyTickets.get()).build();
+    }
+}
@@ -0,0 +1,245 @@
+package ds.tutorials.communication.server;
+
+import ds.tutorials.synchronization.DistributedLock;
+import ds.tutorials.synchronization.DistributedReadWriteLock;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+// Distributed locks striped by concert id, so writes to unrelated concerts don't queue behind
+// each other on a single znode. Each stripe's ZooKeeper lock is created on first use and shared by
+// every caller in this JVM; it queues them locally and reuses its znode while its lease lasts.
+// Acquiring is asynchronous: a waiter is a queued future, not a parked thread.
+// Readers can take the same stripes shared; they only wait for writers queued ahead of them.
+public class ConcertLockManager {
+    public static final int DEFAULT_STRIPES = 16;
+    private static final String LOCK_PREFIX = "concert-lock-";
+
+    private static final class Stripe {
+        final String name;
+        // Guarded by this
+        DistributedLock lock;
+        // Queues in the same znode directory as lock, guarded by this
+        DistributedReadWriteLock sharedLock;
+
+        Stripe(String name) {
+            this.name = name;
+        }
+    }
+
+    private final Stripe[] stripes;
+
+    public ConcertLockManager() {
+        this(DEFAULT_STRIPES);
+    }
+
+    public ConcertLockManager(int stripes) {
+        this("", stripes);
+    }
+
+    // Locks in their own namespace, e.g. one per shard owner: only the owner writes to its
+    // concerts, so its stripes need not be shared with (or queue behind) other nodes'
+    public ConcertLockManager(String namespace, int stripes) {
+        String prefix = namespace.isEmpty() ? LOCK_PREFIX : LOCK_PREFIX + namespace.replaceAll("[^A-Za-z0-9]", "_") + "-";
+        this.stripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new Stripe(prefix + i);
+        }
+    }
+
+    public CompletableFuture<Void> acquireAsync(String concertId) {
+        return acquireStripe(stripes[stripeFor(concertId)]);
+    }
+
+    public CompletableFuture<Void> releaseAsync(String concertId) {
+        return releaseStripe(stripes[stripeFor(concertId)]);
+    }
+
+    // Locks every stripe covering the given concerts once, in ascending stripe order so that
+    // concurrent batches can't deadlock each other
+    public CompletableFuture<Void> acquireAllAsync(Collection<String> concertIds) {
+        List<Stripe> held = new ArrayList<>();
+        CompletableFuture<Void> acquired = CompletableFuture.completedFuture(null);
+        for (int index : stripesFor(concertIds)) {
+            Stripe stripe = stripes[index];
+            acquired = acquired.thenCompose(ignored -> acquireStripe(stripe)).thenRun(() -> held.add(stripe));
+        }
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        acquired.whenComplete((ignored, error) -> {
+            if (error == null) {
+                result.complete(null);
+            } else {
+                releaseStripes(held).whenComplete((ignoredRelease, releaseError) -> result.completeExceptionally(error));
+            }
+        });
+        return result;
+    }
+
+    public CompletableFuture<Void> releaseAllAsync(Collection<String> concertIds) {
+        List<Stripe> held = new ArrayList<>();
+        for (int index : stripesFor(concertIds)) {
+            held.add(stripes[index]);
+        }
+        return releaseStripes(held);
+    }
+
+    // Shared hold on a set of stripes, released as one
+    public static final class SharedHold {
+        private final List<Stripe> stripes = new ArrayList<>();
+        private final List<String> nodes = new ArrayList<>();
+    }
+
+    // Takes every stripe shared, which waits out writes in progress on any node and keeps new
+    // ones out until released. Ascending order, as for writers, so the two can't deadlock.
+    public CompletableFuture<SharedHold> acquireAllSharedAsync() {
+        SharedHold hold = new SharedHold();
+        CompletableFuture<Void> acquired = CompletableFuture.completedFuture(null);
+        for (Stripe stripe : stripes) {
+            acquired = acquired
+                    .thenCompose(ignored -> sharedLockFor(stripe))
+                    .thenCompose(DistributedReadWriteLock::acquireReadLockAsync)
+                    .thenAccept(node -> {
+                        hold.stripes.add(stripe);
+                        hold.nodes.add(node);
+                    });
+        }
+        CompletableFuture<SharedHold> result = new CompletableFuture<>();
+        acquired.whenComplete((ignored, error) -> {
+            if (error == null) {
+                result.complete(hold);
+            } else {
+                releaseSharedAsync(hold).whenComplete((ignoredRelease, releaseError) -> result.completeExceptionally(error));
+            }
+        });
+        return result;
+    }
+
+    // Readers never block each other, so the stripes are released together
+    public CompletableFuture<Void> releaseSharedAsync(SharedHold hold) {
+        CompletableFuture<?>[] released = new CompletableFuture<?>[hold.nodes.size()];
+        for (int i = 0; i < released.length; i++) {
+            released[i] = hold.stripes.get(i).sharedLock.releaseAsync(hold.nodes.get(i));
+        }
+        return CompletableFuture.allOf(released);
+    }
+
+    // Blocking forms, for callers that already run on their own thread
+    public void acquire(String concertId) throws Exception {
+        await(acquireAsync(concertId));
+    }
+
+    public void release(String concertId) throws Exception {
+        await(releaseAsync(concertId));
+    }
+
+    public void acquireAll(Collection<String> concertIds) throws Exception {
+        await(acquireAllAsync(concertIds));
+    }
+
+    public void releaseAll(Collection<String> concertIds) throws Exception {
+        await(releaseAllAsync(concertIds));
+    }
+
+    public int getStripes() {
+        return stripes.length;
+    }
+
+    private CompletableFuture<Void> acquireStripe(Stripe stripe) {
+        DistributedLock lock;
+        synchronized (stripe) {
+            try {
+                // Connecting blocks, but only on the first use of each stripe
+                if (stripe.lock == null) {
+                    stripe.lock = new DistributedLock(stripe.name);
+                }
+            } catch (Exception e) {
+                CompletableFuture<Void> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                return failed;
+            }
+            lock = stripe.lock;
+        }
+        return lock.acquireLockAsync();
+    }
+
+    private CompletableFuture<DistributedReadWriteLock> sharedLockFor(Stripe stripe) {
+        CompletableFuture<DistributedReadWriteLock> result = new CompletableFuture<>();
+        synchronized (stripe) {
+            try {
+                if (stripe.sharedLock == null) {
+                    stripe.sharedLock = new DistributedReadWriteLock(stripe.name);
+                }
+                result.complete(stripe.sharedLock);
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+        }
+        return result;
+    }
+
+    private CompletableFuture<Void> releaseStripe(Stripe stripe) {
+        DistributedLock lock;
+        synchronized (stripe) {
+            lock = stripe.lock;
+        }
+        if (lock == null) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalStateException("Lock " + stripe.name + " is not held"));
+            return failed;
+        }
+        return lock.releaseLockAsync();
+    }
+
+    // Releases in reverse order; every stripe is released even if one of them fails
+    private CompletableFuture<Void> releaseStripes(List<Stripe> held) {
+        CompletableFuture<Void> released = CompletableFuture.completedFuture(null);
+        Throwable[] failure = new Throwable[1];
+        for (int i = held.size() - 1; i >= 0; i--) {
+            Stripe stripe = held.get(i);
+            released = released.thenCompose(ignored -> releaseStripe(stripe).<Void>handle((result, error) -> {
+                if (error != null) {
+                    failure[0] = error;
+                }
+                return null;
+            }));
+        }
+        return released.thenCompose(ignored -> {
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            if (failure[0] != null) {
+                result.completeExceptionally(failure[0]);
+            } else {
+                result.complete(null);
+            }
+            return result;
+        });
+    }
+
+    private TreeSet<Integer> stripesFor(Collection<String> concertIds) {
+        TreeSet<Integer> indexes = new TreeSet<>();
+        for (String concertId : concertIds) {
+            indexes.add(stripeFor(concertId));
+        }
+        return indexes;
+    }
+
+    // The stripe a concert's writes lock, in [0, getStripes())
+    public int stripeFor(String concertId) {
+        return (concertId.hashCode() & 0x7fffffff) % stripes.length;
+    }
+
+    private static void await(CompletableFuture<Void> future) throws Exception {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+}
@@ -2,23 +2,126 @@ package ds.tutorials.communication.server;
 
 import concert.ConcertQueryServiceGrpc;
 import concert.ConcertService;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
-import java.util.Map;
-import java.util.stream.Collectors;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class ConcertQueryServiceImpl extends ConcertQueryServiceGrpc.ConcertQueryServiceImplBase {
-    private final Map<String, ConcertService.Concert.Builder> concerts;
+    // How long a read waits for this node to reach the requested min_version
+    private static final long MIN_VERSION_WAIT_MILLIS = 2000;
+
+    private static final ScheduledExecutorService timeouts = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "query-version-timeouts");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ConcertStore store;
+    // Null for a standalone store, where there are no other writers to wait for
+    private final ConcertLockManager locks;
+    // A follower's store trails the leader's, so it can't serve consistent reads
+    private final boolean replica;
+
+    public ConcertQueryServiceImpl(ConcertStore store) {
+        this(store, null);
+    }
+
+    public ConcertQueryServiceImpl(ConcertStore store, ConcertLockManager locks) {
+        this(store, locks, false);
+    }
 
-    public ConcertQueryServiceImpl(Map<String, ConcertService.Concert.Builder> concerts) {
-        this.concerts = concerts;
+    public ConcertQueryServiceImpl(ConcertStore store, ConcertLockManager locks, boolean replica) {
+        this.store = store;
+        this.locks = locks;
+        this.replica = replica;
     }
 
     @Override
-    public void listConcerts(ConcertService.Empty request, StreamObserver<ConcertService.ListConcertsResponse> responseObserver) {
-        ConcertService.ListConcertsResponse response = ConcertService.ListConcertsResponse.newBuilder()
-                .addAllConcerts(concerts.values().stream().map(ConcertService.Concert.Builder::build).collect(Collectors.toList()))
-                .build();
+    public void listConcerts(ConcertService.ListConcertsRequest request, StreamObserver<ConcertService.ListConcertsResponse> responseObserver) {
+        if (request.getConsistent() && replica) {
+            responseObserver.onError(Status.FAILED_PRECONDITION
+                    .withDescription("Consistent reads are served by the leader").asRuntimeException());
+            return;
+        }
+        long minVersion = request.getMinVersion();
+        if (minVersion <= store.getAppliedSequence()) {
+            listCurrent(request, responseObserver);
+            return;
+        }
+        // Behind the caller's last write: wait for replication to catch up, without holding a thread
+        CompletableFuture<Void> applied = store.whenApplied(minVersion);
+        timeouts.schedule(() -> {
+            if (applied.completeExceptionally(Status.UNAVAILABLE.withDescription("Replica is at version "
+                    + store.getAppliedSequence() + ", behind the requested " + minVersion).asRuntimeException())) {
+                store.cancelWaiter(minVersion, applied);
+            }
+        }, MIN_VERSION_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        applied.whenComplete((ignored, error) -> {
+            if (error != null) {
+                responseObserver.onError(error);
+            } else {
+                listCurrent(request, responseObserver);
+            }
+        });
+    }
+
+    private void listCurrent(ConcertService.ListConcertsRequest request, StreamObserver<ConcertService.ListConcertsResponse> responseObserver) {
+        if (!request.getConsistent() || locks == null) {
+            respond(request, responseObserver);
+            return;
+        }
+        // Shared on every stripe: other readers go ahead together, writes anywhere wait until released
+        locks.acquireAllSharedAsync().whenComplete((hold, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                responseObserver.onError(Status.UNAVAILABLE
+                        .withDescription("Distributed lock error: " + cause.getMessage()).asRuntimeException());
+                return;
+            }
+            try {
+                respond(request, responseObserver);
+            } finally {
+                locks.releaseSharedAsync(hold);
+            }
+        });
+    }
+
+    private void respond(ConcertService.ListConcertsRequest request, StreamObserver<ConcertService.ListConcertsResponse> responseObserver) {
+        ConcertService.ListConcertsResponse response;
+        if (!ConcertIndex.isFiltered(request) && !request.getConsistent()) {
+            ConcertCatalog.View view = store.getCatalog().current();
+            if (view.getVersion() >= request.getMinVersion()) {
+                // Served from the last published immutable view; nothing is built per request
+                response = view.getResponse();
+            } else {
+                // The store has reached min_version but the view trails it; still the whole
+                // catalogue, built from the live state rather than paged through the indexes
+                response = store.getCatalog().build(store.getAppliedSequence());
+            }
+        } else {
+            // Read before the indexes, so the listing reflects at least this version
+            long version = store.getAppliedSequence();
+            try {
+                response = store.getIndex().list(request, store.getConcerts()).toBuilder()
+                        .setVersion(version)
+                        .build();
+            } catch (IllegalArgumentException e) {
+                responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+                return;
+            }
+        }
         responseObserver.onNext(response);
         responseObserver.onCompleted();
     }
-} 
\ No newline at end of file
+
+    @Override
+    public void watchInventory(ConcertService.WatchInventoryRequest request, StreamObserver<ConcertService.InventoryEvent> responseObserver) {
+        store.getFeed().subscribe(request, (ServerCallStreamObserver<ConcertService.InventoryEvent>) responseObserver);
+    }
+}
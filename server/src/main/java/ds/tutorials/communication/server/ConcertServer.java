@@ -2,71 +2,293 @@ package ds.tutorials.communication.server;
 
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.util.MutableHandlerRegistry;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import distributed.NameServiceClient;
+import distributed.ShardMap;
 import ds.tutorials.communication.server.LeaderElection;
 import org.apache.zookeeper.KeeperException;
 
+// Every node serves replication, and the replica query service for queries on its copy of the
+// data. The command service is added when the node is elected, with a query service for consistent
+// reads in place of the replica's, and both are removed if it loses leadership; this happens from
+// the election's callbacks, so taking over costs no more than ZooKeeper noticing the old leader is
+// gone.
+//
+// Started with "sharded", every node takes writes instead: concert ids are spread over the
+// members of the election group by a consistent hash ring kept in ZooKeeper (see
+// ShardCoordinator), and each node serves commands and queries for the concerts it owns. The
+// elected node maintains the ring and publishes it to the name service for clients.
 public class ConcertServer {
     private static final String SERVICE_NAME = "concert-service";
+    // Every node, leader or follower, registers an instance here for queries
+    private static final String READ_SERVICE_NAME = "concert-service-read";
+    // The shard map, when concerts are sharded
+    private static final String SHARD_SERVICE_NAME = "concert-shards";
     private static final String PROTOCOL = "grpc";
-    
+    private static final String ZOOKEEPER_ADDRESS = "127.0.0.1:2181";
+    private static final long SHUTDOWN_HANDOFF_MILLIS = 10000;
+
+    private final String hostAddress;
+    private final int port;
+    private final String ownAddress;
+    private final String nameServiceAddress;
+    private final ConcertStore store;
+    private final MutableHandlerRegistry registry = new MutableHandlerRegistry();
+    private final ConcertQueryServiceImpl replicaQueryService;
+    private final NameServiceClient nameServiceClient;
+    private final boolean sharded;
+    private LeaderElection leaderElection;
+    private ShardCoordinator shards;
+    private ShardRebalancer rebalancer;
+    // Only touched from the election's callbacks, which run one at a time
+    private ConcertCommandServiceImpl commandService;
+    // The registry removes services by definition identity, so the bound definition is kept
+    private ServerServiceDefinition commandDefinition;
+    private ReplicationClient replication;
+    private boolean wasLeader = false;
+    // Checks the leader's entry after name service changes, off the watch thread
+    private final ExecutorService registrationChecks = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "leader-registration");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Set once this node has registered as the leader, cleared when it unregisters
+    private volatile boolean advertisedLeader = false;
+    private final Runnable onNameServiceChange = () -> registrationChecks.execute(this::checkLeaderRegistration);
+
+    private ConcertServer(String hostAddress, int port, String nameServiceAddress, String dataDir,
+                          boolean sharded) throws IOException {
+        this.hostAddress = hostAddress;
+        this.port = port;
+        this.ownAddress = hostAddress + ":" + port;
+        this.nameServiceAddress = nameServiceAddress;
+        this.store = new ConcertStore(dataDir);
+        this.replicaQueryService = new ConcertQueryServiceImpl(store, null, true);
+        this.nameServiceClient = new NameServiceClient(nameServiceAddress);
+        this.sharded = sharded;
+    }
+
     public static void main(String[] args) throws IOException, InterruptedException {
         if (args.length < 3) {
-            System.out.println("Usage: ConcertServer <port> <nameServiceAddress> <dataDir>");
+            System.out.println("Usage: ConcertServer <port> <nameServiceAddress> <dataDir> [grpcThreads] [sharded]");
             System.exit(1);
         }
-        
+
         int port = Integer.parseInt(args[0]);
         String nameServiceAddress = args[1];
         String dataDir = args[2];
+        // Handlers no longer block on locks or disk, so a small fixed pool is enough; default is gRPC's cached pool
+        int grpcThreads = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+        boolean sharded = args.length > 4 && args[4].equals("sharded");
+
+        String hostAddress = "localhost"; // In production, this should be the actual host address
+        new ConcertServer(hostAddress, port, nameServiceAddress, dataDir, sharded).run(grpcThreads);
+    }
+
+    private void run(int grpcThreads) throws IOException, InterruptedException {
+        registry.addService(replicaQueryService);
+        ServerBuilder<?> serverBuilder = ServerBuilder.forPort(port)
+                .addService(new ReplicationServiceImpl(store))
+                .fallbackHandlerRegistry(registry);
+        if (sharded) {
+            startShardedCommands(serverBuilder);
+        }
+        if (grpcThreads > 0) {
+            serverBuilder.executor(Executors.newFixedThreadPool(grpcThreads));
+        }
+        Server server = serverBuilder.build();
+        server.start();
+        System.out.println("ConcertServer started, listening on port " + port);
+
+        try {
+            nameServiceClient.registerServiceInstance(READ_SERVICE_NAME, ownAddress, hostAddress, port, PROTOCOL);
+        } catch (IOException e) {
+            System.err.println("Failed to register as a read endpoint: " + e.getMessage());
+        }
 
         // Leader election setup
-        LeaderElection leaderElection;
         try {
-            leaderElection = new LeaderElection("127.0.0.1:2181");
-            leaderElection.setOnElectedLeader(() -> System.out.println("[LeaderElection] This node is now the LEADER."));
-            leaderElection.setOnElectedFollower(() -> System.out.println("[LeaderElection] This node is a FOLLOWER."));
-            leaderElection.volunteerForLeadership();
+            leaderElection = new LeaderElection(ZOOKEEPER_ADDRESS);
+            if (sharded) {
+                shards = new ShardCoordinator(ZOOKEEPER_ADDRESS);
+                shards.setOnMapChanged(this::shardMapChanged);
+                shards.start();
+                leaderElection.setOnElectedLeader(this::becomeShardCoordinator);
+                leaderElection.setOnElectedFollower(() -> {
+                    shards.setCoordinating(false);
+                    unregisterLeader();
+                });
+            } else {
+                leaderElection.setOnElectedLeader(this::becomeLeader);
+                leaderElection.setOnElectedFollower(this::becomeFollower);
+            }
+            leaderElection.volunteerForLeadership(ownAddress);
             leaderElection.electLeader();
+            nameServiceClient.addChangeListener(onNameServiceChange);
         } catch (KeeperException | IOException | InterruptedException e) {
             System.err.println("Failed to start leader election: " + e.getMessage());
             e.printStackTrace();
+            server.shutdownNow();
+            try { store.close(); } catch (IOException ignore) {}
             return;
         }
 
-        if (!leaderElection.isLeader()) {
-            System.out.println("This node is not the leader. Waiting for leadership...");
-            // Wait until this node becomes leader
-            while (!leaderElection.isLeader()) {
-                Thread.sleep(2000);
-            }
-            System.out.println("This node has become the leader. Starting server...");
-        }
-        
-        // Register with name service
-        NameServiceClient nameServiceClient = new NameServiceClient(nameServiceAddress);
-        String hostAddress = "localhost"; // In production, this should be the actual host address
-        nameServiceClient.registerService(SERVICE_NAME, hostAddress, port, PROTOCOL);
-        
-        // Start the server
-        ConcertCommandServiceImpl commandService = new ConcertCommandServiceImpl(nameServiceAddress, dataDir);
-        ConcertQueryServiceImpl queryService = new ConcertQueryServiceImpl(commandService.getConcerts());
-        Server server = ServerBuilder.forPort(port)
-                .addService(commandService)
-                .addService(queryService)
-                .build();
-        
-        System.out.println("ConcertServer started, listening on port " + port);
-        server.start();
-        
         // Add shutdown hook
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             System.out.println("Shutting down ConcertServer...");
-            server.shutdown();
+            // Stopped first, so a check can't register us again after the lease is revoked
+            nameServiceClient.removeChangeListener(onNameServiceChange);
+            registrationChecks.shutdownNow();
+            try { registrationChecks.awaitTermination(1, TimeUnit.SECONDS); } catch (InterruptedException ignore) {}
+            // Revokes our registrations, so clients stop being sent here straight away
+            try { nameServiceClient.close(); } catch (IOException ignore) {}
             try { leaderElection.close(); } catch (Exception ignore) {}
+            if (sharded) {
+                // Leaving the group moves our concerts to the remaining nodes; wait for that
+                // before closing the store, so none are unavailable until we are back
+                try {
+                    if (!rebalancer.awaitHandedOff(SHUTDOWN_HANDOFF_MILLIS)) {
+                        System.err.println("Shutting down with " + store.getConcerts().size() + " concerts not handed off");
+                    }
+                    shards.close();
+                } catch (InterruptedException ignore) {}
+                rebalancer.close();
+            }
+            server.shutdown();
+            try { store.close(); } catch (IOException ignore) {}
         }));
-        
+
         server.awaitTermination();
     }
-} 
\ No newline at end of file
+
+    // A shard owner serves commands from the start, for whichever concerts the map gives it
+    private void startShardedCommands(ServerBuilder<?> serverBuilder) {
+        commandService = new ConcertCommandServiceImpl(nameServiceAddress, store, ZOOKEEPER_ADDRESS,
+                new ConcertLockManager(ownAddress, ConcertLockManager.DEFAULT_STRIPES));
+        commandService.enableSharding(ownAddress);
+        rebalancer = new ShardRebalancer(commandService, ownAddress);
+        registry.addService(commandService.bindService());
+        registry.addService(new ConcertQueryServiceImpl(store, commandService.getLocks()));
+        serverBuilder.addService(new ShardServiceImpl(commandService, rebalancer::rebalance));
+    }
+
+    private void shardMapChanged(ShardMap map) {
+        commandService.setShardMap(map);
+        rebalancer.rebalance();
+        if (leaderElection.isLeader()) {
+            publishShardMap(map);
+        }
+    }
+
+    private void becomeShardCoordinator() {
+        System.out.println("[LeaderElection] This node now maintains the shard map.");
+        shards.setCoordinating(true);
+        ShardMap map = commandService.getShardMap();
+        if (map != null) {
+            publishShardMap(map);
+        }
+        // Older clients still find a node through the leader's entry
+        advertisedLeader = true;
+        try {
+            nameServiceClient.registerService(SERVICE_NAME, hostAddress, port, PROTOCOL);
+        } catch (IOException e) {
+            System.err.println("Failed to register as the leader: " + e.getMessage());
+        }
+    }
+
+    // The leader's entry is a single key that every node that has led writes to. A former leader
+    // can still write it, e.g. putting its registrations back after its lease expired just before
+    // it learned it had lost leadership; once it learns, it deletes its entry again. The leader puts
+    // itself back whenever the entry is missing. An entry naming another node is left alone, since
+    // that node may believe it still leads, and the two would otherwise keep overwriting each other.
+    private void checkLeaderRegistration() {
+        if (!advertisedLeader || !leaderElection.isLeader()) {
+            return;
+        }
+        try {
+            if (nameServiceClient.lookupService(SERVICE_NAME) == null) {
+                System.out.println("Leader entry missing, registering again");
+                nameServiceClient.registerService(SERVICE_NAME, hostAddress, port, PROTOCOL);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to check the leader registration: " + e.getMessage());
+        }
+    }
+
+    // Stops advertising this node as the leader; the lease would otherwise keep the entry alive for
+    // as long as the node is. Only removes the entry if a new leader hasn't already replaced it.
+    private void unregisterLeader() {
+        advertisedLeader = false;
+        try {
+            nameServiceClient.unregister(SERVICE_NAME);
+        } catch (IOException e) {
+            System.err.println("Failed to unregister as the leader, retrying in the background: " + e.getMessage());
+        }
+    }
+
+    private void publishShardMap(ShardMap map) {
+        try {
+            nameServiceClient.registerShardMap(SHARD_SERVICE_NAME, map);
+        } catch (IOException e) {
+            System.err.println("Failed to publish the shard map: " + e.getMessage());
+        }
+    }
+
+    private void becomeLeader() {
+        System.out.println("[LeaderElection] This node is now the LEADER.");
+        try {
+            if (replication != null) {
+                replication.stop();
+                replication = null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        // Stamped on every mutation from here on, so followers holding writes from an earlier
+        // leader that never reached this node see the mismatch and resync
+        store.setTerm(leaderElection.getTerm());
+        if (commandService == null) {
+            commandService = new ConcertCommandServiceImpl(nameServiceAddress, store, ZOOKEEPER_ADDRESS);
+            commandDefinition = commandService.bindService();
+        }
+        registry.addService(commandDefinition);
+        // Replaces the replica's query service, which can't serve consistent reads
+        registry.addService(new ConcertQueryServiceImpl(store, commandService.getLocks()));
+        wasLeader = true;
+        System.out.println("Serving commands from sequence " + store.getSequence());
+
+        // Register with name service; a failure is retried at the next name service change
+        advertisedLeader = true;
+        try {
+            nameServiceClient.registerService(SERVICE_NAME, hostAddress, port, PROTOCOL);
+        } catch (IOException e) {
+            System.err.println("Failed to register as the leader: " + e.getMessage());
+        }
+    }
+
+    private void becomeFollower() {
+        System.out.println("[LeaderElection] This node is a FOLLOWER.");
+        if (commandDefinition != null) {
+            registry.removeService(commandDefinition);
+        }
+        unregisterLeader();
+        registry.addService(replicaQueryService);
+        // Stay a warm copy of the leader so taking over needs no reload. A former leader may have
+        // written mutations the new leader never received, so it starts over from the leader's state.
+        replication = new ReplicationClient(store, ownAddress, () -> {
+            try {
+                String leader = leaderElection.getLeaderAddress();
+                return ownAddress.equals(leader) ? null : leader;
+            } catch (KeeperException | InterruptedException e) {
+                return null;
+            }
+        }, wasLeader);
+        replication.start();
+    }
+}
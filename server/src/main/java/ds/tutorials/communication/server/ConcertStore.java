@@ -0,0 +1,584 @@
+package ds.tutorials.communication.server;
+
+import concert.ConcertService;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// In-memory concert state backed by periodic snapshots and a write-ahead log of the mutations since
+public class ConcertStore implements Closeable {
+    private static final String LOG_DIR = "wal";
+    private static final long DEFAULT_SNAPSHOT_INTERVAL_SECONDS = 60;
+
+    private final Map<String, ConcertInventory> concerts = new ConcurrentHashMap<>();
+    private final Map<String, ConcertService.ReservationResponse> reservations = new ConcurrentHashMap<>();
+    private final ConcertCatalog catalog = new ConcertCatalog(concerts, this::getAppliedSequence);
+    // Versioned by the applied sequence, like the catalog, so a min_version read at an event's
+    // version already sees its change
+    private final InventoryFeed feed = new InventoryFeed(concerts, this::getAppliedSequence);
+    private final ConcertIndex index = new ConcertIndex();
+    private final ReplicationLog replication = new ReplicationLog(this::getSequence, this::replicationSnapshot);
+    private final Object appendLock = new Object();
+    // Commits hold the read side; a snapshot takes the write side to capture a consistent checkpoint
+    private final ReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+    private final Path dataDir;
+    private final WriteAheadLog log;
+    private final ScheduledExecutorService snapshotScheduler;
+    // Runs fsyncs for durable() so request threads don't wait on the disk
+    private final ExecutorService flusher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "concert-store-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Written under appendLock
+    private volatile long sequence = 0;
+    // Election term of the mutation at sequence
+    private volatile long lastTerm = 0;
+    // Stamped on the mutations this node writes; set when it becomes the leader
+    private volatile long term = 0;
+    private volatile long snapshotSequence = 0;
+    // Held from taking a snapshot to cleaning up after writing it, so a periodic snapshot of the
+    // old state can't land on disk after installSnapshot has replaced it
+    private final Object snapshotLock = new Object();
+    // Mutations on different concerts are applied concurrently, so they can finish out of order.
+    // appliedSequence only moves past a sequence once it and everything before it are visible.
+    private final Object appliedLock = new Object();
+    private final PriorityQueue<Long> appliedOutOfOrder = new PriorityQueue<>();
+    private final TreeMap<Long, List<CompletableFuture<Void>>> appliedWaiters = new TreeMap<>();
+    private volatile long appliedSequence = 0;
+
+    public ConcertStore(String dataDir) throws IOException {
+        this(dataDir, DEFAULT_SNAPSHOT_INTERVAL_SECONDS);
+    }
+
+    public ConcertStore(String dataDir, long snapshotIntervalSeconds) throws IOException {
+        this.dataDir = Paths.get(dataDir);
+        Files.createDirectories(this.dataDir);
+        this.log = new WriteAheadLog(this.dataDir.resolve(LOG_DIR));
+        recover();
+        this.snapshotScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "concert-store-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotScheduler.scheduleWithFixedDelay(() -> {
+            try {
+                snapshot();
+            } catch (Exception e) {
+                System.err.println("Failed to write snapshot: " + e.getMessage());
+            }
+        }, snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    // Loads the latest snapshot and replays only the log records written after it
+    private void recover() throws IOException {
+        long start = System.currentTimeMillis();
+        SnapshotFile snapshot = SnapshotFile.loadLatest(dataDir);
+        if (snapshot != null) {
+            for (ConcertService.Concert concert : snapshot.getConcerts()) {
+                concerts.put(concert.getId(), new ConcertInventory(concert));
+                index.put(concert);
+            }
+            for (ConcertService.ReservationResponse reservation : snapshot.getReservations()) {
+                reservations.put(reservation.getReservationId(), reservation);
+            }
+            sequence = snapshot.getSequence();
+            lastTerm = snapshot.getTerm();
+            snapshotSequence = sequence;
+        }
+        int replayed = log.replay(record -> {
+            ConcertService.Mutation mutation = ConcertService.Mutation.parseFrom(record);
+            if (mutation.getSequence() > sequence) {
+                apply(mutation);
+                sequence = mutation.getSequence();
+                lastTerm = mutation.getTerm();
+            }
+        });
+        replication.reset(sequence, lastTerm);
+        appliedSequence = sequence;
+        // Published once the applied sequence is known, so the first view carries it
+        catalog.markAllChanged();
+        System.out.println("Recovered " + concerts.size() + " concerts and " + reservations.size()
+                + " reservations from snapshot " + snapshotSequence + " and " + replayed + " log records in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    // Writes a snapshot of the current state and drops the log segments it covers
+    public void snapshot() throws IOException {
+        synchronized (snapshotLock) {
+            SnapshotFile snapshot;
+            long logStart;
+            checkpointLock.writeLock().lock();
+            try {
+                if (sequence == snapshotSequence) {
+                    return;
+                }
+                logStart = log.roll();
+                // No commit can run while the write lock is held, so the counters are stable here
+                List<ConcertService.Concert> concertCopies = new ArrayList<>(concerts.size());
+                for (ConcertInventory concert : concerts.values()) {
+                    concertCopies.add(concert.toConcert());
+                }
+                snapshot = new SnapshotFile(sequence, lastTerm, concertCopies, new ArrayList<>(reservations.values()));
+            } finally {
+                checkpointLock.writeLock().unlock();
+            }
+            snapshot.write(dataDir);
+            log.deleteSegmentsBefore(logStart);
+            SnapshotFile.deleteOlderThan(dataDir, snapshot.getSequence());
+            snapshotSequence = snapshot.getSequence();
+            System.out.println("Wrote snapshot at sequence " + snapshot.getSequence() + " with "
+                    + snapshot.getConcerts().size() + " concerts and " + snapshot.getReservations().size() + " reservations");
+        }
+    }
+
+    // Appends the mutation to the log and applies it in memory. The returned position
+    // must be passed to awaitDurable() before the change is acknowledged to a client.
+    public long commit(ConcertService.Mutation.Builder mutation) throws IOException {
+        checkpointLock.readLock().lock();
+        try {
+            long position = append(mutation);
+            try {
+                apply(mutation.build());
+            } finally {
+                markApplied(mutation.getSequence());
+            }
+            return position;
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+    }
+
+    // Takes the seats with a compare-and-decrement and logs the reservation if that succeeded.
+    // Returns the log position to pass to awaitDurable().
+    public long reserve(ConcertService.ReservationRecord record) throws IOException, ReservationRejectedException {
+        checkpointLock.readLock().lock();
+        try {
+            ConcertInventory concert = concerts.get(record.getConcertId());
+            if (concert == null) {
+                throw new ReservationRejectedException("Concert not found.");
+            }
+            switch (concert.tryReserve(record.getTier(), record.getCount(), record.getAfterParty())) {
+                case NOT_ENOUGH_SEATS:
+                    throw new ReservationRejectedException("Not enough seats available.");
+                case NOT_ENOUGH_AFTER_PARTY:
+                    throw new ReservationRejectedException("Not enough after-party tickets available.");
+                default:
+                    break;
+            }
+            ConcertService.Mutation.Builder mutation = ConcertService.Mutation.newBuilder().setReserve(record);
+            long position;
+            try {
+                position = append(mutation);
+            } catch (IOException e) {
+                releaseSeats(concert, record);
+                throw e;
+            }
+            try {
+                reservations.put(record.getReservation().getReservationId(), record.getReservation());
+                catalog.markChanged(record.getConcertId());
+                publishReserve(record);
+            } finally {
+                markApplied(mutation.getSequence());
+            }
+            return position;
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+    }
+
+    // Checks that reserve() would take the seats once seatsHeld and afterPartyHeld are set aside
+    // for reservations staged before this one, without taking anything. Only holds while the
+    // concert's lock keeps other writers out.
+    public void checkReservation(ConcertService.ReservationRecord record, int seatsHeld, int afterPartyHeld)
+            throws ReservationRejectedException {
+        ConcertInventory concert = concerts.get(record.getConcertId());
+        if (concert == null) {
+            throw new ReservationRejectedException("Concert not found.");
+        }
+        if (concert.getAvailableSeats(record.getTier()) - seatsHeld < record.getCount()) {
+            throw new ReservationRejectedException("Not enough seats available.");
+        }
+        if (record.getAfterParty() && concert.getAfterPartyTickets() - afterPartyHeld < record.getCount()) {
+            throw new ReservationRejectedException("Not enough after-party tickets available.");
+        }
+    }
+
+    // Assigns the next sequence number and writes the record; callers hold the checkpoint read lock
+    private long append(ConcertService.Mutation.Builder mutation) throws IOException {
+        synchronized (appendLock) {
+            mutation.setSequence(sequence + 1).setTerm(term);
+            ConcertService.Mutation built = mutation.build();
+            long position = log.append(built.toByteArray());
+            replication.append(built);
+            sequence = built.getSequence();
+            lastTerm = built.getTerm();
+            return position;
+        }
+    }
+
+    // Applies a mutation shipped by the leader under the sequence number the leader gave it.
+    // Returns the log position to pass to durable(), or -1 if it was already applied. Throws
+    // IllegalStateException when this node is out of step with the leader: a gap, a mutation we
+    // hold at that sequence from another term, or one from an older term than we already have.
+    public long applyReplicated(ConcertService.Mutation mutation) throws IOException {
+        checkpointLock.readLock().lock();
+        try {
+            long position;
+            synchronized (appendLock) {
+                if (mutation.getSequence() <= sequence) {
+                    long applied = replication.termAt(mutation.getSequence());
+                    if (applied >= 0 && applied != mutation.getTerm()) {
+                        throw new IllegalStateException("Term mismatch at sequence " + mutation.getSequence()
+                                + ": have term " + applied + ", got " + mutation.getTerm());
+                    }
+                    return -1;
+                }
+                if (mutation.getSequence() != sequence + 1) {
+                    throw new IllegalStateException("Replication gap: have " + sequence + ", got " + mutation.getSequence());
+                }
+                if (mutation.getTerm() < lastTerm) {
+                    throw new IllegalStateException("Stale term: have term " + lastTerm + ", got "
+                            + mutation.getTerm() + " at sequence " + mutation.getSequence());
+                }
+                position = log.append(mutation.toByteArray());
+                // Kept so that this node can catch the others up if it becomes the leader
+                replication.append(mutation);
+                sequence = mutation.getSequence();
+                lastTerm = mutation.getTerm();
+            }
+            try {
+                apply(mutation);
+            } finally {
+                markApplied(mutation.getSequence());
+            }
+            return position;
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+    }
+
+    // Consistent copy of the whole state for a follower that can't be caught up from the backlog
+    private ConcertService.StoreSnapshot replicationSnapshot() {
+        checkpointLock.writeLock().lock();
+        try {
+            ConcertService.StoreSnapshot.Builder snapshot = ConcertService.StoreSnapshot.newBuilder()
+                    .setSequence(sequence)
+                    .setTerm(lastTerm)
+                    .addAllReservations(reservations.values());
+            for (ConcertInventory concert : concerts.values()) {
+                snapshot.addConcerts(concert.toConcert());
+            }
+            return snapshot.build();
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    // Replaces the whole state with the leader's and checkpoints it, so the log from before
+    // (which may have diverged from the leader's) is never replayed
+    public void installSnapshot(ConcertService.StoreSnapshot snapshot) throws IOException {
+        synchronized (snapshotLock) {
+            checkpointLock.writeLock().lock();
+            try {
+                for (String concertId : concerts.keySet()) {
+                    index.remove(concertId);
+                    catalog.markChanged(concertId);
+                    feed.concertChanged(concertId);
+                }
+                concerts.clear();
+                reservations.clear();
+                for (ConcertService.Concert concert : snapshot.getConcertsList()) {
+                    concerts.put(concert.getId(), new ConcertInventory(concert));
+                    index.put(concert);
+                    feed.concertChanged(concert.getId());
+                }
+                for (ConcertService.ReservationResponse reservation : snapshot.getReservationsList()) {
+                    reservations.put(reservation.getReservationId(), reservation);
+                }
+                long logStart;
+                synchronized (appendLock) {
+                    replication.reset(snapshot.getSequence(), snapshot.getTerm());
+                    sequence = snapshot.getSequence();
+                    lastTerm = snapshot.getTerm();
+                    logStart = log.roll();
+                }
+                resetApplied(snapshot.getSequence());
+                catalog.markAllChanged();
+                // Checkpointed before any commit can follow, so a crash part way through leaves
+                // only our old history on disk, never the leader's next writes on top of it; the
+                // leader's term check replaces that history again. Our own snapshots past the
+                // leader's sequence hold the diverged writes, and recovery loads the newest.
+                new SnapshotFile(snapshot.getSequence(), snapshot.getTerm(), snapshot.getConcertsList(), snapshot.getReservationsList()).write(dataDir);
+                SnapshotFile.deleteNewerThan(dataDir, snapshot.getSequence());
+                log.deleteSegmentsBefore(logStart);
+                SnapshotFile.deleteOlderThan(dataDir, snapshot.getSequence());
+                snapshotSequence = snapshot.getSequence();
+            } finally {
+                checkpointLock.writeLock().unlock();
+            }
+        }
+        System.out.println("Installed leader state at sequence " + snapshot.getSequence() + " with "
+                + snapshot.getConcertsCount() + " concerts and " + snapshot.getReservationsCount() + " reservations");
+    }
+
+    private void markApplied(long sequence) {
+        List<CompletableFuture<Void>> ready = new ArrayList<>();
+        synchronized (appliedLock) {
+            appliedOutOfOrder.add(sequence);
+            long applied = appliedSequence;
+            while (!appliedOutOfOrder.isEmpty() && appliedOutOfOrder.peek() <= applied + 1) {
+                applied = Math.max(applied, appliedOutOfOrder.poll());
+            }
+            appliedSequence = applied;
+            collectReadyWaiters(applied, ready);
+        }
+        catalog.appliedSequenceAdvanced();
+        for (CompletableFuture<Void> waiter : ready) {
+            waiter.complete(null);
+        }
+    }
+
+    // After the whole state was replaced; callers hold the checkpoint write lock, so nothing is mid-apply
+    private void resetApplied(long sequence) {
+        List<CompletableFuture<Void>> ready = new ArrayList<>();
+        synchronized (appliedLock) {
+            appliedOutOfOrder.clear();
+            appliedSequence = sequence;
+            collectReadyWaiters(sequence, ready);
+        }
+        for (CompletableFuture<Void> waiter : ready) {
+            waiter.complete(null);
+        }
+    }
+
+    // Callers hold appliedLock
+    private void collectReadyWaiters(long applied, List<CompletableFuture<Void>> ready) {
+        while (!appliedWaiters.isEmpty() && appliedWaiters.firstKey() <= applied) {
+            ready.addAll(appliedWaiters.pollFirstEntry().getValue());
+        }
+    }
+
+    // Completes once every mutation up to version is visible in memory
+    public CompletableFuture<Void> whenApplied(long version) {
+        CompletableFuture<Void> waiter = new CompletableFuture<>();
+        synchronized (appliedLock) {
+            if (version > appliedSequence) {
+                appliedWaiters.computeIfAbsent(version, key -> new ArrayList<>()).add(waiter);
+                return waiter;
+            }
+        }
+        waiter.complete(null);
+        return waiter;
+    }
+
+    // Drops a waiter that gave up, so a replica that never catches up doesn't collect them
+    public void cancelWaiter(long version, CompletableFuture<Void> waiter) {
+        synchronized (appliedLock) {
+            List<CompletableFuture<Void>> waiters = appliedWaiters.get(version);
+            if (waiters != null && waiters.remove(waiter) && waiters.isEmpty()) {
+                appliedWaiters.remove(version);
+            }
+        }
+    }
+
+    public void awaitDurable(long position) throws IOException {
+        log.sync(position);
+    }
+
+    // Completes once the position is on disk. Queued flushes are cheap after the first one
+    // because a single fsync covers every record appended before it.
+    public CompletableFuture<Void> durable(long position) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                log.sync(position);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, flusher);
+    }
+
+    private void apply(ConcertService.Mutation mutation) {
+        String concertId;
+        switch (mutation.getOpCase()) {
+            case PUT_CONCERT:
+                ConcertService.Concert concert = mutation.getPutConcert();
+                concertId = concert.getId();
+                concerts.put(concertId, new ConcertInventory(concert));
+                index.put(concert);
+                feed.concertChanged(concertId);
+                break;
+            case CANCEL_CONCERT:
+                concertId = mutation.getCancelConcert().getConcertId();
+                concerts.remove(concertId);
+                index.remove(concertId);
+                feed.concertChanged(concertId);
+                break;
+            case ADD_TICKET_STOCK:
+                concertId = mutation.getAddTicketStock().getConcertId();
+                applyAddTicketStock(mutation.getAddTicketStock());
+                break;
+            case UPDATE_TICKET_PRICE:
+                concertId = mutation.getUpdateTicketPrice().getConcertId();
+                applyUpdateTicketPrice(mutation.getUpdateTicketPrice());
+                break;
+            case RESERVE:
+                concertId = mutation.getReserve().getConcertId();
+                applyReserve(mutation.getReserve());
+                break;
+            case PUT_RESERVATION:
+                concertId = mutation.getPutReservation().getConcertId();
+                reservations.put(mutation.getPutReservation().getReservationId(), mutation.getPutReservation());
+                break;
+            default:
+                System.err.println("Ignoring unknown mutation " + mutation.getSequence());
+                return;
+        }
+        catalog.markChanged(concertId);
+    }
+
+    private void applyAddTicketStock(ConcertService.AddTicketStockRequest request) {
+        ConcertInventory concert = concerts.get(request.getConcertId());
+        if (concert == null) {
+            return;
+        }
+        if (request.getAfterParty()) {
+            concert.addAfterPartyTickets(request.getCount());
+            feed.afterPartyChanged(request.getConcertId());
+        } else {
+            concert.addSeats(request.getTier(), request.getCount());
+            feed.tierChanged(request.getConcertId(), request.getTier());
+            // Set price if provided and > 0
+            if (request.getPrice() > 0) {
+                concert.setPrice(request.getTier(), request.getPrice());
+                feed.concertChanged(request.getConcertId());
+            }
+        }
+    }
+
+    private void applyUpdateTicketPrice(ConcertService.UpdateTicketPriceRequest request) {
+        ConcertInventory concert = concerts.get(request.getConcertId());
+        if (concert != null) {
+            concert.setPrice(request.getTier(), request.getPrice());
+            feed.concertChanged(request.getConcertId());
+        }
+    }
+
+    // Replays a reservation that was already validated when it was first committed
+    private void applyReserve(ConcertService.ReservationRecord record) {
+        ConcertInventory concert = concerts.get(record.getConcertId());
+        if (concert != null) {
+            concert.addSeats(record.getTier(), -record.getCount());
+            if (record.getAfterParty()) {
+                concert.addAfterPartyTickets(-record.getCount());
+            }
+        }
+        ConcertService.ReservationResponse reservation = record.getReservation();
+        reservations.put(reservation.getReservationId(), reservation);
+        publishReserve(record);
+    }
+
+    private void publishReserve(ConcertService.ReservationRecord record) {
+        feed.tierChanged(record.getConcertId(), record.getTier());
+        if (record.getAfterParty()) {
+            feed.afterPartyChanged(record.getConcertId());
+        }
+    }
+
+    private static void releaseSeats(ConcertInventory concert, ConcertService.ReservationRecord record) {
+        concert.addSeats(record.getTier(), record.getCount());
+        if (record.getAfterParty()) {
+            concert.addAfterPartyTickets(record.getCount());
+        }
+    }
+
+    public Map<String, ConcertInventory> getConcerts() {
+        return concerts;
+    }
+
+    // Reservations on the given concerts. Ones logged before reservations carried their concert's
+    // id can't be told apart and are never found.
+    public List<ConcertService.ReservationResponse> reservationsOn(Set<String> concertIds) {
+        List<ConcertService.ReservationResponse> found = new ArrayList<>();
+        for (ConcertService.ReservationResponse reservation : reservations.values()) {
+            if (concertIds.contains(reservation.getConcertId())) {
+                found.add(reservation);
+            }
+        }
+        return found;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    // Election term of the mutation at getSequence()
+    public long getLastTerm() {
+        return lastTerm;
+    }
+
+    // Term to stamp on the mutations this node writes from now on; a new leader's term must be
+    // above that of every earlier leader, so followers can tell its mutations from theirs
+    public void setTerm(long term) {
+        this.term = term;
+    }
+
+    // Every mutation up to this sequence is visible in memory; getSequence() can be ahead of it
+    public long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    public InventoryFeed getFeed() {
+        return feed;
+    }
+
+    public ConcertCatalog getCatalog() {
+        return catalog;
+    }
+
+    public ReplicationLog getReplication() {
+        return replication;
+    }
+
+    public ConcertIndex getIndex() {
+        return index;
+    }
+
+    public Map<String, ConcertService.ReservationResponse> getReservations() {
+        return reservations;
+    }
+
+    public static class ReservationRejectedException extends Exception {
+        public ReservationRejectedException(String message) {
+            super(message);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        snapshotScheduler.shutdownNow();
+        flusher.shutdownNow();
+        catalog.close();
+        feed.close();
+        replication.close();
+        log.close();
+    }
+}
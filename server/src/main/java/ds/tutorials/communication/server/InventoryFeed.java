@@ -0,0 +1,237 @@
+package ds.tutorials.communication.server;
+
+import concert.ConcertService;
+import io.grpc.stub.ServerCallStreamObserver;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+// Pushes inventory changes to WatchInventory subscribers. Writers only record which
+// concert/tier changed; the current value is read when the delta is actually sent, so
+// repeated changes to the same key conflate into one message for a slow subscriber.
+// A subscriber whose backlog exceeds the bound is resynchronised with a fresh snapshot.
+public class InventoryFeed {
+    private static final int DEFAULT_MAX_PENDING = 1024;
+
+    private enum KeyType { TIER, AFTER_PARTY, CONCERT }
+
+    private static final class Key {
+        final KeyType type;
+        final String concertId;
+        final String tier;
+
+        Key(KeyType type, String concertId, String tier) {
+            this.type = type;
+            this.concertId = concertId;
+            this.tier = tier;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return type == other.type && concertId.equals(other.concertId) && Objects.equals(tier, other.tier);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, concertId, tier);
+        }
+    }
+
+    private final Map<String, ConcertInventory> concerts;
+    private final LongSupplier version;
+    private final int maxPending;
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final ExecutorService dispatcher;
+
+    public InventoryFeed(Map<String, ConcertInventory> concerts, LongSupplier version) {
+        this(concerts, version, DEFAULT_MAX_PENDING);
+    }
+
+    public InventoryFeed(Map<String, ConcertInventory> concerts, LongSupplier version, int maxPending) {
+        this.concerts = concerts;
+        this.version = version;
+        this.maxPending = maxPending;
+        this.dispatcher = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "inventory-feed-dispatcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void subscribe(ConcertService.WatchInventoryRequest request,
+                          ServerCallStreamObserver<ConcertService.InventoryEvent> observer) {
+        Subscriber subscriber = new Subscriber(observer, new HashSet<>(request.getConcertIdsList()));
+        observer.setOnCancelHandler(() -> subscribers.remove(subscriber));
+        observer.setOnReadyHandler(subscriber::scheduleDrain);
+        subscribers.add(subscriber);
+        subscriber.scheduleDrain();
+    }
+
+    public void tierChanged(String concertId, String tier) {
+        if (!subscribers.isEmpty()) {
+            publish(new Key(KeyType.TIER, concertId, tier));
+        }
+    }
+
+    public void afterPartyChanged(String concertId) {
+        if (!subscribers.isEmpty()) {
+            publish(new Key(KeyType.AFTER_PARTY, concertId, null));
+        }
+    }
+
+    public void concertChanged(String concertId) {
+        if (!subscribers.isEmpty()) {
+            publish(new Key(KeyType.CONCERT, concertId, null));
+        }
+    }
+
+    private void publish(Key key) {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.offer(key);
+        }
+    }
+
+    // Completes every subscriber on the dispatcher, after any send in progress, since an observer
+    // can't be called from two threads at once
+    public void close() {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.complete();
+        }
+        subscribers.clear();
+        dispatcher.shutdown();
+    }
+
+    private final class Subscriber {
+        private final ServerCallStreamObserver<ConcertService.InventoryEvent> observer;
+        private final Set<String> concertFilter;
+        private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+        private volatile boolean completed = false;
+        // Guarded by this; the snapshot is built at send time so it already covers any pending key
+        private final LinkedHashSet<Key> pending = new LinkedHashSet<>();
+        private boolean needsSnapshot = true;
+
+        Subscriber(ServerCallStreamObserver<ConcertService.InventoryEvent> observer, Set<String> concertFilter) {
+            this.observer = observer;
+            this.concertFilter = concertFilter;
+        }
+
+        void offer(Key key) {
+            if (!concertFilter.isEmpty() && !concertFilter.contains(key.concertId)) {
+                return;
+            }
+            synchronized (this) {
+                if (needsSnapshot) {
+                    return;
+                }
+                pending.add(key);
+                if (pending.size() > maxPending) {
+                    pending.clear();
+                    needsSnapshot = true;
+                }
+            }
+            scheduleDrain();
+        }
+
+        void scheduleDrain() {
+            if (!completed && drainScheduled.compareAndSet(false, true)) {
+                try {
+                    dispatcher.execute(this::drain);
+                } catch (RejectedExecutionException closing) {
+                    // The feed closed since the check; its completion is already queued
+                }
+            }
+        }
+
+        void complete() {
+            completed = true;
+            dispatcher.execute(() -> {
+                try {
+                    observer.onCompleted();
+                } catch (RuntimeException e) {
+                    // Already cancelled by the client
+                }
+            });
+        }
+
+        // Runs on the dispatcher thread only, and sends outside the lock so writers never wait on the network
+        private void drain() {
+            drainScheduled.set(false);
+            try {
+                while (!completed && observer.isReady() && !observer.isCancelled()) {
+                    boolean sendSnapshot;
+                    Key key = null;
+                    synchronized (this) {
+                        sendSnapshot = needsSnapshot;
+                        needsSnapshot = false;
+                        if (sendSnapshot) {
+                            pending.clear();
+                        } else {
+                            Iterator<Key> iterator = pending.iterator();
+                            if (!iterator.hasNext()) {
+                                return;
+                            }
+                            key = iterator.next();
+                            iterator.remove();
+                        }
+                    }
+                    observer.onNext(sendSnapshot ? snapshotEvent() : deltaEvent(key));
+                }
+            } catch (RuntimeException e) {
+                System.err.println("Dropping inventory subscriber: " + e.getMessage());
+                subscribers.remove(this);
+            }
+        }
+
+        private ConcertService.InventoryEvent snapshotEvent() {
+            long current = version.getAsLong();
+            List<ConcertService.Concert> snapshot = new ArrayList<>();
+            for (ConcertInventory concert : concerts.values()) {
+                if (concertFilter.isEmpty() || concertFilter.contains(concert.getId())) {
+                    snapshot.add(concert.toConcert());
+                }
+            }
+            return ConcertService.InventoryEvent.newBuilder()
+                    .setVersion(current)
+                    .setSnapshot(ConcertService.ListConcertsResponse.newBuilder().addAllConcerts(snapshot))
+                    .build();
+        }
+
+        private ConcertService.InventoryEvent deltaEvent(Key key) {
+            long current = version.getAsLong();
+            ConcertService.InventoryDelta.Builder delta = ConcertService.InventoryDelta.newBuilder()
+                    .setConcertId(key.concertId);
+            ConcertInventory concert = concerts.get(key.concertId);
+            if (concert == null) {
+                delta.setCancelled(true);
+            } else if (key.type == KeyType.TIER) {
+                delta.setTier(ConcertService.TierAvailability.newBuilder()
+                        .setTier(key.tier)
+                        .setAvailable(concert.getAvailableSeats(key.tier)));
+            } else if (key.type == KeyType.AFTER_PARTY) {
+                delta.setAfterPartyTickets(concert.getAfterPartyTickets());
+            } else {
+                delta.setConcert(concert.toConcert());
+            }
+            return ConcertService.InventoryEvent.newBuilder()
+                    .setVersion(current)
+                    .setDelta(delta)
+                    .build();
+        }
+    }
+}
@@ -1,53 +1,104 @@
 package ds.tutorials.communication.server;
 
+import ds.tutorials.synchronization.ZooKeeperClient;
 import org.apache.zookeeper.*;
-import org.apache.zookeeper.data.Stat;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+// Each node stands with an ephemeral sequential node; the smallest one leads and every other node
+// watches only its predecessor. Callbacks fire once per change of role, in order, on a dedicated
+// thread so they may block without holding up ZooKeeper's event thread.
 public class LeaderElection implements Watcher {
     private static final String ELECTION_NAMESPACE = "/election";
-    private final ZooKeeper zooKeeper;
-    private String currentZnodeName;
-    private boolean isLeader = false;
+    // Shares the process's ZooKeeper session with the locks and transactions
+    private final ZooKeeperClient zooKeeper;
+    private final ExecutorService events = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "leader-election-events");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile String currentZnodeName;
+    private String address = "";
+    private volatile boolean isLeader = false;
+    // Guarded by this; null until the first election
+    private Boolean announcedLeader;
     private Runnable onElectedLeader;
     private Runnable onElectedFollower;
 
     public LeaderElection(String zkAddress) throws IOException, KeeperException, InterruptedException {
-        this.zooKeeper = new ZooKeeper(zkAddress, 3000, this);
+        this.zooKeeper = new ZooKeeperClient(zkAddress, 3000, this);
         ensureElectionZnode();
     }
 
     private void ensureElectionZnode() throws KeeperException, InterruptedException {
-        Stat stat = zooKeeper.exists(ELECTION_NAMESPACE, false);
-        if (stat == null) {
+        if (!zooKeeper.CheckExists(ELECTION_NAMESPACE)) {
             try {
-                zooKeeper.create(ELECTION_NAMESPACE, new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+                zooKeeper.createNode(ELECTION_NAMESPACE, false, CreateMode.PERSISTENT, new byte[]{});
             } catch (KeeperException.NodeExistsException ignore) {}
         }
     }
 
     public void volunteerForLeadership() throws KeeperException, InterruptedException {
+        volunteerForLeadership("");
+    }
+
+    // The address is stored on our election node so that followers can find the leader
+    public void volunteerForLeadership(String address) throws KeeperException, InterruptedException {
+        this.address = address;
         String znodePrefix = ELECTION_NAMESPACE + "/node_";
-        String znodeFullPath = zooKeeper.create(znodePrefix, new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+        String znodeFullPath = zooKeeper.createNode(znodePrefix, false, CreateMode.EPHEMERAL_SEQUENTIAL,
+                address.getBytes(StandardCharsets.UTF_8));
         this.currentZnodeName = znodeFullPath.replace(ELECTION_NAMESPACE + "/", "");
     }
 
-    public void electLeader() throws KeeperException, InterruptedException {
-        List<String> children = zooKeeper.getChildren(ELECTION_NAMESPACE, false);
+    public synchronized void electLeader() throws KeeperException, InterruptedException {
+        List<String> children = zooKeeper.getChildrenNodePaths(ELECTION_NAMESPACE);
         Collections.sort(children);
         String smallestChild = children.get(0);
         if (smallestChild.equals(currentZnodeName)) {
-            isLeader = true;
-            if (onElectedLeader != null) onElectedLeader.run();
+            announceRole(true);
         } else {
-            isLeader = false;
-            if (onElectedFollower != null) onElectedFollower.run();
+            announceRole(false);
             int predecessorIndex = Collections.binarySearch(children, currentZnodeName) - 1;
             String watchNode = children.get(predecessorIndex);
-            zooKeeper.exists(ELECTION_NAMESPACE + "/" + watchNode, this);
+            if (!zooKeeper.addWatch(ELECTION_NAMESPACE + "/" + watchNode)) {
+                // Gone before the watch was set, so no deletion event will come
+                electLeader();
+            }
+        }
+    }
+
+    // Callers hold this
+    private void announceRole(boolean leader) {
+        isLeader = leader;
+        if (announcedLeader != null && announcedLeader == leader) {
+            return;
+        }
+        announcedLeader = leader;
+        Runnable callback = leader ? onElectedLeader : onElectedFollower;
+        if (callback != null) {
+            events.execute(callback);
+        }
+    }
+
+    // Address the current leader volunteered with, or null if there is no leader right now
+    public String getLeaderAddress() throws KeeperException, InterruptedException {
+        List<String> children = zooKeeper.getChildrenNodePaths(ELECTION_NAMESPACE);
+        if (children.isEmpty()) {
+            return null;
+        }
+        Collections.sort(children);
+        try {
+            byte[] data = zooKeeper.getData(ELECTION_NAMESPACE + "/" + children.get(0), false);
+            String leader = new String(data, StandardCharsets.UTF_8);
+            return leader.isEmpty() ? null : leader;
+        } catch (KeeperException.NoNodeException e) {
+            // The leader just left
+            return null;
         }
     }
 
@@ -55,6 +106,12 @@ public class LeaderElection implements Watcher {
         return isLeader;
     }
 
+    // Sequence number ZooKeeper gave our election node. Every candidacy gets a higher one than all
+    // nodes before it, so a leader's term is above that of every earlier leader.
+    public long getTerm() {
+        return Long.parseLong(currentZnodeName.substring(currentZnodeName.lastIndexOf('_') + 1));
+    }
+
     public void setOnElectedLeader(Runnable callback) {
         this.onElectedLeader = callback;
     }
@@ -73,12 +130,36 @@ public class LeaderElection implements Watcher {
                     e.printStackTrace();
                 }
                 break;
+            case None:
+                if (event.getState() == Event.KeeperState.Expired) {
+                    // Our election node went with the expired session, so another node may already
+                    // lead: step down first, then stand again on the replaced shared session
+                    synchronized (this) {
+                        announceRole(false);
+                    }
+                    try {
+                        volunteerForLeadership(address);
+                        electLeader();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+                break;
             default:
                 break;
         }
     }
 
+    // Resigns right away: the shared session, and with it our election node, can outlive this object
     public void close() throws InterruptedException {
+        if (currentZnodeName != null) {
+            try {
+                zooKeeper.delete(ELECTION_NAMESPACE + "/" + currentZnodeName);
+            } catch (KeeperException e) {
+                // Already gone with an expired session
+            }
+        }
         zooKeeper.close();
+        events.shutdown();
     }
 } 
\ No newline at end of file
@@ -0,0 +1,128 @@
+package ds.tutorials.communication.server;
+
+import concert.ConcertService;
+import concert.ReplicationServiceGrpc;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.StatusRuntimeException;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.function.Supplier;
+
+// Keeps this node's store a warm copy of the leader's by following its replication stream, so a
+// failover only has to wait for the election. Whenever the stream ends it looks the leader up
+// again and resumes from the last sequence it applied, and the term it was written in: a leader
+// that has another mutation at that sequence sends its full state instead.
+public class ReplicationClient {
+    private static final long RETRY_MILLIS = 1000;
+    // The first message can be the leader's whole state
+    private static final int MAX_MESSAGE_BYTES = 256 * 1024 * 1024;
+
+    private final ConcertStore store;
+    private final String nodeId;
+    // host:port of the current leader, or null while there is none to follow
+    private final Supplier<String> leaderAddress;
+    private volatile boolean running = false;
+    private volatile boolean resync;
+    private volatile ManagedChannel channel;
+    private Thread thread;
+
+    public ReplicationClient(ConcertStore store, String nodeId, Supplier<String> leaderAddress) {
+        this(store, nodeId, leaderAddress, false);
+    }
+
+    // With resync set, the first connection asks for the leader's full state instead of resuming,
+    // for a node whose log may hold mutations the leader never had
+    public ReplicationClient(ConcertStore store, String nodeId, Supplier<String> leaderAddress, boolean resync) {
+        this.store = store;
+        this.nodeId = nodeId;
+        this.leaderAddress = leaderAddress;
+        this.resync = resync;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::run, "replication-client");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        ManagedChannel current = channel;
+        if (current != null) {
+            current.shutdownNow();
+        }
+        thread.interrupt();
+        thread.join();
+    }
+
+    private void run() {
+        while (running) {
+            String leader = leaderAddress.get();
+            if (leader != null) {
+                follow(leader);
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void follow(String leader) {
+        ManagedChannel leaderChannel = ManagedChannelBuilder.forTarget(leader)
+                .usePlaintext()
+                .maxInboundMessageSize(MAX_MESSAGE_BYTES)
+                .build();
+        channel = leaderChannel;
+        try {
+            // Only this thread applies mutations, so the sequence and its term go together
+            long from = resync ? 0 : store.getSequence() + 1;
+            long lastTerm = store.getLastTerm();
+            System.out.println("Replicating from leader " + leader + " starting at sequence " + from + " (term " + lastTerm + ")");
+            Iterator<ConcertService.ReplicationMessage> stream = ReplicationServiceGrpc.newBlockingStub(leaderChannel)
+                    .replicate(ConcertService.ReplicateRequest.newBuilder()
+                            .setFromSequence(from)
+                            .setFollowerId(nodeId)
+                            .setLastTerm(lastTerm)
+                            .build());
+            while (running && stream.hasNext()) {
+                apply(stream.next());
+            }
+        } catch (StatusRuntimeException e) {
+            if (running) {
+                System.err.println("Replication stream from " + leader + " ended: " + e.getStatus());
+            }
+        } catch (IllegalStateException e) {
+            // Out of step with the leader; start over from its full state
+            System.err.println(e.getMessage() + ", requesting the leader's full state");
+            resync = true;
+        } catch (IOException e) {
+            System.err.println("Failed to apply replicated data: " + e.getMessage());
+        } finally {
+            leaderChannel.shutdownNow();
+        }
+    }
+
+    private void apply(ConcertService.ReplicationMessage message) throws IOException {
+        if (message.hasSnapshot()) {
+            store.installSnapshot(message.getSnapshot());
+            resync = false;
+            return;
+        }
+        long position = store.applyReplicated(message.getMutation());
+        if (position >= 0) {
+            // Not waited for: one fsync covers everything appended before it
+            store.durable(position);
+        }
+    }
+}
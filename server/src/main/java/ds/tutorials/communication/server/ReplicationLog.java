@@ -0,0 +1,170 @@
+package ds.tutorials.communication.server;
+
+import concert.ConcertService;
+import io.grpc.stub.ServerCallStreamObserver;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+// Ships committed mutations to followers. The most recent mutations are kept in memory; a
+// follower asking from a sequence still in that backlog is caught up from there, and one that
+// is further behind (or ahead, after a failover to a node that had less) first gets the full
+// state. So does one whose last mutation was written in a different term than ours at that
+// sequence: it took writes from a former leader that this node never had. Each follower stream
+// reads from the backlog at its own pace, following gRPC flow control, so a slow follower never
+// holds up commits.
+public class ReplicationLog {
+    private static final int DEFAULT_BACKLOG = 100_000;
+
+    private final LongSupplier sequence;
+    private final Supplier<ConcertService.StoreSnapshot> snapshots;
+    private final int capacity;
+    private final ConcurrentSkipListMap<Long, ConcertService.Mutation> backlog = new ConcurrentSkipListMap<>();
+    private final List<Follower> followers = new CopyOnWriteArrayList<>();
+    private final ExecutorService dispatcher;
+    // Sequence and term of the store's state when the backlog was last reset; guarded by this
+    private long baseSequence = 0;
+    private long baseTerm = 0;
+
+    public ReplicationLog(LongSupplier sequence, Supplier<ConcertService.StoreSnapshot> snapshots) {
+        this(sequence, snapshots, DEFAULT_BACKLOG);
+    }
+
+    public ReplicationLog(LongSupplier sequence, Supplier<ConcertService.StoreSnapshot> snapshots, int capacity) {
+        this.sequence = sequence;
+        this.snapshots = snapshots;
+        this.capacity = capacity;
+        this.dispatcher = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "replication-dispatcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Called in sequence order, before the store publishes the mutation's sequence
+    public void append(ConcertService.Mutation mutation) {
+        backlog.put(mutation.getSequence(), mutation);
+        while (backlog.size() > capacity) {
+            backlog.pollFirstEntry();
+        }
+        for (Follower follower : followers) {
+            follower.scheduleDrain();
+        }
+    }
+
+    // Drops the backlog when the store's state is replaced wholesale, or starts it after recovery;
+    // sequence and term describe the last mutation in that state
+    public synchronized void reset(long sequence, long term) {
+        backlog.clear();
+        baseSequence = sequence;
+        baseTerm = term;
+    }
+
+    // Term of the mutation at sequence, or -1 if it is no longer known here
+    public long termAt(long sequence) {
+        ConcertService.Mutation mutation = backlog.get(sequence);
+        if (mutation != null) {
+            return mutation.getTerm();
+        }
+        synchronized (this) {
+            return sequence == baseSequence ? baseTerm : -1;
+        }
+    }
+
+    public void subscribe(ConcertService.ReplicateRequest request,
+                          ServerCallStreamObserver<ConcertService.ReplicationMessage> observer) {
+        // Asking from sequence 0 or below means the follower wants the full state whatever it has.
+        // Otherwise its last mutation has to be the one we have at that sequence; if it isn't, or
+        // we can't tell, it starts over from our state.
+        long from = request.getFromSequence();
+        boolean needsSnapshot = from <= 0 || termAt(from - 1) != request.getLastTerm();
+        Follower follower = new Follower(request.getFollowerId(), observer, from, needsSnapshot);
+        observer.setOnCancelHandler(() -> {
+            followers.remove(follower);
+            System.out.println("Follower " + follower.id + " disconnected");
+        });
+        observer.setOnReadyHandler(follower::scheduleDrain);
+        followers.add(follower);
+        System.out.println("Follower " + follower.id + " replicating from sequence " + follower.next);
+        follower.scheduleDrain();
+    }
+
+    public int getFollowers() {
+        return followers.size();
+    }
+
+    public void close() {
+        for (Follower follower : followers) {
+            follower.observer.onCompleted();
+        }
+        followers.clear();
+        dispatcher.shutdownNow();
+    }
+
+    private final class Follower {
+        private final String id;
+        private final ServerCallStreamObserver<ConcertService.ReplicationMessage> observer;
+        private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+        // Only touched on the dispatcher thread
+        private long next;
+        private boolean needsSnapshot;
+
+        Follower(String id, ServerCallStreamObserver<ConcertService.ReplicationMessage> observer, long next,
+                 boolean needsSnapshot) {
+            this.id = id;
+            this.observer = observer;
+            this.next = next;
+            this.needsSnapshot = needsSnapshot;
+        }
+
+        void scheduleDrain() {
+            if (drainScheduled.compareAndSet(false, true)) {
+                dispatcher.execute(this::drain);
+            }
+        }
+
+        // Runs on the dispatcher thread only
+        private void drain() {
+            drainScheduled.set(false);
+            try {
+                while (observer.isReady() && !observer.isCancelled()) {
+                    // Mutations reach the backlog just before their sequence is published, so
+                    // anything up to current that is missing from the backlog has been dropped.
+                    // The newest one may already be there, and its wake-up may come before it is
+                    // published, so the backlog decides what to send.
+                    long current = sequence.getAsLong();
+                    ConcertService.Mutation mutation = needsSnapshot ? null : backlog.get(next);
+                    if (mutation != null) {
+                        observer.onNext(ConcertService.ReplicationMessage.newBuilder().setMutation(mutation).build());
+                        next++;
+                        continue;
+                    }
+                    if (needsSnapshot || next <= current || (next > current + 1 && !backlog.containsKey(next - 1))) {
+                        // Either already dropped from the backlog, or the follower is ahead of us
+                        // (it applied mutations we never had); start it over from our state
+                        sendSnapshot();
+                        continue;
+                    }
+                    return;
+                }
+            } catch (RuntimeException e) {
+                System.err.println("Dropping follower " + id + ": " + e.getMessage());
+                followers.remove(this);
+            }
+        }
+
+        private void sendSnapshot() {
+            ConcertService.StoreSnapshot snapshot = snapshots.get();
+            System.out.println("Sending follower " + id + " the full state at sequence " + snapshot.getSequence());
+            observer.onNext(ConcertService.ReplicationMessage.newBuilder().setSnapshot(snapshot).build());
+            next = snapshot.getSequence() + 1;
+            needsSnapshot = false;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package ds.tutorials.communication.server;
+
+import concert.ConcertService;
+import concert.ReplicationServiceGrpc;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+public class ReplicationServiceImpl extends ReplicationServiceGrpc.ReplicationServiceImplBase {
+    private final ConcertStore store;
+
+    public ReplicationServiceImpl(ConcertStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public void replicate(ConcertService.ReplicateRequest request, StreamObserver<ConcertService.ReplicationMessage> responseObserver) {
+        store.getReplication().subscribe(request, (ServerCallStreamObserver<ConcertService.ReplicationMessage>) responseObserver);
+    }
+}
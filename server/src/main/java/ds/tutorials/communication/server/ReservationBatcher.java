@@ -0,0 +1,164 @@
+package ds.tutorials.communication.server;
+
+import concert.ConcertService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.ToIntFunction;
+
+// Micro-batches concurrent single reservations. While one batch is committing, new requests
+// queue up and are committed together by the next one, so the locking and 2PC round trips to
+// ZooKeeper are paid per batch rather than per ticket. There is no linger: an idle server
+// commits a lone request straight away. Callers only get a future, so no request thread waits.
+// Requests are split into lanes, one per lock stripe, each batching and committing on its own
+// thread: a stripe that is slow to lock (e.g. held by another node) only holds up its own lane.
+public class ReservationBatcher {
+    public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+
+    public interface BatchCommitter {
+        // Returns one response per request, in the same order. Every request in a batch maps to
+        // the given lane; batches on different lanes are committed concurrently.
+        List<ConcertService.ReservationResponse> commit(int lane, List<ConcertService.ReserveTicketsRequest> batch);
+    }
+
+    private static final class Pending {
+        final List<ConcertService.ReserveTicketsRequest> requests;
+        final CompletableFuture<List<ConcertService.ReservationResponse>> result = new CompletableFuture<>();
+
+        Pending(List<ConcertService.ReserveTicketsRequest> requests) {
+            this.requests = requests;
+        }
+    }
+
+    private final class Lane implements Runnable {
+        final int index;
+        final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+        final Thread worker;
+
+        Lane(int index) {
+            this.index = index;
+            this.worker = new Thread(this, "reservation-batcher-" + index);
+            this.worker.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            List<Pending> batch = new ArrayList<>(maxBatchSize);
+            List<ConcertService.ReserveTicketsRequest> requests = new ArrayList<>(maxBatchSize);
+            while (running) {
+                Pending next;
+                try {
+                    next = queue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                // Fill up to the batch size, but never split a caller's requests across batches
+                do {
+                    batch.add(next);
+                    requests.addAll(next.requests);
+                } while (requests.size() < maxBatchSize && (next = queue.poll()) != null);
+                try {
+                    List<ConcertService.ReservationResponse> results = committer.commit(index, requests);
+                    int offset = 0;
+                    for (Pending pending : batch) {
+                        int end = offset + pending.requests.size();
+                        pending.result.complete(new ArrayList<>(results.subList(offset, end)));
+                        offset = end;
+                    }
+                } catch (RuntimeException e) {
+                    for (Pending pending : batch) {
+                        pending.result.completeExceptionally(e);
+                    }
+                }
+                batch.clear();
+                requests.clear();
+            }
+        }
+    }
+
+    private final BatchCommitter committer;
+    private final ToIntFunction<String> laneOf;
+    private final int maxBatchSize;
+    private final Lane[] lanes;
+    private volatile boolean running = true;
+
+    // laneOf maps a concert id to its lane, in [0, lanes)
+    public ReservationBatcher(BatchCommitter committer, int lanes, ToIntFunction<String> laneOf) {
+        this(committer, lanes, laneOf, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    public ReservationBatcher(BatchCommitter committer, int lanes, ToIntFunction<String> laneOf, int maxBatchSize) {
+        this.committer = committer;
+        this.laneOf = laneOf;
+        this.maxBatchSize = maxBatchSize;
+        this.lanes = new Lane[lanes];
+        for (int i = 0; i < lanes; i++) {
+            this.lanes[i] = new Lane(i);
+            this.lanes[i].worker.start();
+        }
+    }
+
+    public CompletableFuture<ConcertService.ReservationResponse> submit(ConcertService.ReserveTicketsRequest request) {
+        return submitAll(Collections.singletonList(request)).thenApply(results -> results.get(0));
+    }
+
+    // A caller's requests for one lane are always committed in the same batch, which may also carry
+    // other callers' requests. Requests spanning lanes are committed per lane, each part on its own.
+    public CompletableFuture<List<ConcertService.ReservationResponse>> submitAll(List<ConcertService.ReserveTicketsRequest> requests) {
+        if (requests.isEmpty()) {
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        }
+        Map<Integer, List<Integer>> positionsByLane = new LinkedHashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            positionsByLane.computeIfAbsent(laneOf.applyAsInt(requests.get(i).getConcertId()), lane -> new ArrayList<>()).add(i);
+        }
+        if (positionsByLane.size() == 1) {
+            return enqueue(positionsByLane.keySet().iterator().next(), requests);
+        }
+        ConcertService.ReservationResponse[] results = new ConcertService.ReservationResponse[requests.size()];
+        List<CompletableFuture<Void>> parts = new ArrayList<>(positionsByLane.size());
+        for (Map.Entry<Integer, List<Integer>> lane : positionsByLane.entrySet()) {
+            List<Integer> positions = lane.getValue();
+            List<ConcertService.ReserveTicketsRequest> part = new ArrayList<>(positions.size());
+            for (int position : positions) {
+                part.add(requests.get(position));
+            }
+            // A part that fails only fails its own requests; the other parts may have committed
+            parts.add(enqueue(lane.getKey(), part).handle((partResults, error) -> {
+                for (int i = 0; i < positions.size(); i++) {
+                    results[positions.get(i)] = error == null ? partResults.get(i)
+                            : ConcertService.ReservationResponse.newBuilder()
+                                    .setSuccess(false)
+                                    .setMessage("Failed to reserve tickets: " + error.getMessage())
+                                    .build();
+                }
+                return null;
+            }));
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> {
+                    List<ConcertService.ReservationResponse> combined = new ArrayList<>(results.length);
+                    Collections.addAll(combined, results);
+                    return combined;
+                });
+    }
+
+    private CompletableFuture<List<ConcertService.ReservationResponse>> enqueue(int lane, List<ConcertService.ReserveTicketsRequest> requests) {
+        Pending pending = new Pending(requests);
+        lanes[lane].queue.add(pending);
+        return pending.result;
+    }
+
+    public void close() {
+        running = false;
+        for (Lane lane : lanes) {
+            lane.worker.interrupt();
+        }
+    }
+}
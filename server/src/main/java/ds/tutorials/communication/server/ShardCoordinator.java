@@ -0,0 +1,141 @@
+package ds.tutorials.communication.server;
+
+import distributed.ShardMap;
+import ds.tutorials.synchronization.ZooKeeperClient;
+import org.apache.zookeeper.*;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+// Keeps the shard map in ZooKeeper in step with the election group. The elected node rewrites
+// /shard_map whenever a node joins or leaves; every node watches /shard_map and applies each map
+// that differs from the one it has, so all nodes end up on the one ZooKeeper holds. Callbacks run
+// in order on a dedicated thread.
+public class ShardCoordinator implements Watcher {
+    private static final String ELECTION_NAMESPACE = "/election";
+    private static final String SHARD_MAP_PATH = "/shard_map";
+    // Shares the process's ZooKeeper session with the election and the locks
+    private final ZooKeeperClient zooKeeper;
+    private final ExecutorService events = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "shard-map-events");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean coordinating = false;
+    // Fires when a node joins or leaves the election group
+    private final Watcher membershipWatcher = event -> {
+        if (coordinating) {
+            events.execute(this::publishMembership);
+        }
+    };
+    private final Watcher mapWatcher = event -> watchMap();
+    // Only touched on the events thread
+    private ShardMap current;
+    private Consumer<ShardMap> onMapChanged;
+
+    public ShardCoordinator(String zkAddress) throws IOException, KeeperException, InterruptedException {
+        this.zooKeeper = new ZooKeeperClient(zkAddress, 3000, this);
+        if (!zooKeeper.CheckExists(SHARD_MAP_PATH)) {
+            try {
+                zooKeeper.createNode(SHARD_MAP_PATH, false, CreateMode.PERSISTENT,
+                        new ShardMap(0, Collections.emptyList()).toJson().getBytes(StandardCharsets.UTF_8));
+            } catch (KeeperException.NodeExistsException ignore) {}
+        }
+    }
+
+    // Called with each new map; set before start
+    public void setOnMapChanged(Consumer<ShardMap> callback) {
+        this.onMapChanged = callback;
+    }
+
+    public void start() {
+        watchMap();
+    }
+
+    // Only the elected node writes the map, so it is set from the election's callbacks
+    public void setCoordinating(boolean coordinating) {
+        this.coordinating = coordinating;
+        if (coordinating) {
+            events.execute(this::publishMembership);
+        }
+    }
+
+    // Runs on the events thread. The epoch goes up by one from the map in ZooKeeper, so it keeps
+    // counting up across changes of coordinator.
+    private void publishMembership() {
+        if (!coordinating) {
+            return;
+        }
+        try {
+            Map<String, byte[]> nodes = zooKeeper.getChildrenDataAsync(ELECTION_NAMESPACE, membershipWatcher).join();
+            Set<String> members = new TreeSet<>();
+            for (byte[] data : nodes.values()) {
+                String address = new String(data, StandardCharsets.UTF_8);
+                if (!address.isEmpty()) {
+                    members.add(address);
+                }
+            }
+            ShardMap published = ShardMap.fromJson(new String(zooKeeper.getData(SHARD_MAP_PATH, false), StandardCharsets.UTF_8));
+            if (published.getMembers().equals(new ArrayList<>(members))) {
+                return;
+            }
+            ShardMap next = new ShardMap(published.getEpoch() + 1, members);
+            zooKeeper.write(SHARD_MAP_PATH, next.toJson().getBytes(StandardCharsets.UTF_8));
+            System.out.println("Published shard map " + next);
+        } catch (KeeperException | CompletionException e) {
+            System.err.println("Failed to publish the shard map: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void watchMap() {
+        zooKeeper.getDataAsync(SHARD_MAP_PATH, mapWatcher).whenComplete((data, error) -> {
+            if (error != null) {
+                System.err.println("Failed to read the shard map: " + error.getMessage());
+                return;
+            }
+            ShardMap map = ShardMap.fromJson(new String(data, StandardCharsets.UTF_8));
+            events.execute(() -> apply(map));
+        });
+    }
+
+    // Runs on the events thread
+    private void apply(ShardMap map) {
+        if (current != null && current.getEpoch() == map.getEpoch()
+                && Objects.equals(current.getMembers(), map.getMembers())) {
+            return;
+        }
+        current = map;
+        System.out.println("Shard map is now " + map);
+        if (onMapChanged != null) {
+            onMapChanged.accept(map);
+        }
+    }
+
+    @Override
+    public void process(WatchedEvent event) {
+        if (event.getType() == Event.EventType.None && event.getState() == Event.KeeperState.Expired) {
+            // Watches went with the session; set them again on its replacement
+            watchMap();
+            if (coordinating) {
+                events.execute(this::publishMembership);
+            }
+        }
+    }
+
+    public void close() throws InterruptedException {
+        coordinating = false;
+        zooKeeper.close();
+        events.shutdown();
+    }
+}
@@ -0,0 +1,170 @@
+package ds.tutorials.communication.server;
+
+import concert.ConcertService;
+import concert.ShardServiceGrpc;
+import distributed.ShardMap;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Hands concerts this node holds but no longer owns to their new owners after the shard map
+// changes. Each batch is locked, sent and, once the owner has it on disk, cancelled here; the
+// ownership check writes make under the same locks keeps anything from changing in between.
+// A failed handoff is tried again until it goes through or the concerts come back to us.
+//
+// Concerts are not replicated in sharded mode. While an owner is down its concerts are unavailable:
+// their new owner doesn't have them and answers as if they didn't exist. They come back when the
+// node restarts from its disk and hands them on, and are lost if that disk is. A concert a client
+// created on the new owner in the meantime is kept over the copy that comes back (see
+// ConcertCommandServiceImpl.keepGeneration).
+public class ShardRebalancer {
+    private static final int BATCH_SIZE = 100;
+    private static final long RETRY_MILLIS = 1000;
+    private static final long HANDOFF_DEADLINE_MILLIS = 5000;
+
+    private final ConcertCommandServiceImpl commands;
+    private final ConcertStore store;
+    private final String ownAddress;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "shard-rebalancer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    // Only touched on the rebalancer thread
+    private final Map<String, ManagedChannel> channels = new HashMap<>();
+
+    public ShardRebalancer(ConcertCommandServiceImpl commands, String ownAddress) {
+        this.commands = commands;
+        this.store = commands.getStore();
+        this.ownAddress = ownAddress;
+    }
+
+    // Coalesces: a pass already waiting to run will see the latest map
+    public void rebalance() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(this::run);
+        }
+    }
+
+    // Waits for every concert held here to be handed off, e.g. after leaving the group on
+    // shutdown. Gives up at the deadline or if there is no other node left to take them.
+    public boolean awaitHandedOff(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!store.getConcerts().isEmpty() && System.currentTimeMillis() < deadline) {
+            ShardMap map = commands.getShardMap();
+            if (map != null && map.getMembers().isEmpty()) {
+                return false;
+            }
+            Thread.sleep(100);
+        }
+        return store.getConcerts().isEmpty();
+    }
+
+    // Runs on the rebalancer thread only
+    private void run() {
+        scheduled.set(false);
+        ShardMap map = commands.getShardMap();
+        if (map == null || map.getMembers().isEmpty()) {
+            return;
+        }
+        Map<String, List<String>> moving = new HashMap<>();
+        for (String concertId : store.getConcerts().keySet()) {
+            String owner = map.ownerOf(concertId);
+            if (!ownAddress.equals(owner)) {
+                moving.computeIfAbsent(owner, key -> new ArrayList<>()).add(concertId);
+            }
+        }
+        boolean retry = false;
+        for (Map.Entry<String, List<String>> owner : moving.entrySet()) {
+            List<String> concertIds = owner.getValue();
+            for (int from = 0; from < concertIds.size(); from += BATCH_SIZE) {
+                try {
+                    handOff(owner.getKey(), concertIds.subList(from, Math.min(concertIds.size(), from + BATCH_SIZE)));
+                } catch (Exception e) {
+                    System.err.println("Failed to hand concerts to " + owner.getKey() + ": " + e.getMessage());
+                    retry = true;
+                    break;
+                }
+            }
+        }
+        closeChannelsExcept(map);
+        if (retry) {
+            executor.schedule(this::rebalance, RETRY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void handOff(String owner, List<String> concertIds) throws Exception {
+        ConcertLockManager locks = commands.getLocks();
+        locks.acquireAll(concertIds);
+        try {
+            // The map may have moved on while we waited for the locks
+            ShardMap map = commands.getShardMap();
+            List<ConcertService.Concert> handedOff = new ArrayList<>();
+            Set<String> handedOffIds = new HashSet<>();
+            for (String concertId : concertIds) {
+                ConcertInventory concert = store.getConcerts().get(concertId);
+                if (concert != null && owner.equals(map.ownerOf(concertId))) {
+                    handedOff.add(concert.toConcert().toBuilder().setGeneration(concert.getGeneration() + 1).build());
+                    handedOffIds.add(concertId);
+                }
+            }
+            if (handedOff.isEmpty()) {
+                return;
+            }
+            ConcertService.HandoffResponse response = ShardServiceGrpc.newBlockingStub(channel(owner))
+                    .withDeadlineAfter(HANDOFF_DEADLINE_MILLIS, TimeUnit.MILLISECONDS)
+                    .handoff(ConcertService.HandoffRequest.newBuilder()
+                            .setFrom(ownAddress)
+                            .addAllConcerts(handedOff)
+                            .addAllReservations(store.reservationsOn(handedOffIds))
+                            .build());
+            // Our copies of the reservations stay behind, as they do when a concert is cancelled
+            long lastPosition = -1;
+            for (ConcertService.Concert concert : handedOff) {
+                lastPosition = store.commit(ConcertService.Mutation.newBuilder().setCancelConcert(
+                        ConcertService.CancelConcertRequest.newBuilder().setConcertId(concert.getId())));
+            }
+            store.awaitDurable(lastPosition);
+            System.out.println("Handed " + handedOff.size() + " concerts to " + owner
+                    + " (" + response.getAccepted() + " new to it)");
+        } finally {
+            locks.releaseAll(concertIds);
+        }
+    }
+
+    private ManagedChannel channel(String address) {
+        return channels.computeIfAbsent(address, target -> ManagedChannelBuilder.forTarget(target)
+                .usePlaintext()
+                .build());
+    }
+
+    private void closeChannelsExcept(ShardMap map) {
+        Iterator<Map.Entry<String, ManagedChannel>> entries = channels.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, ManagedChannel> entry = entries.next();
+            if (!map.getMembers().contains(entry.getKey())) {
+                entry.getValue().shutdown();
+                entries.remove();
+            }
+        }
+    }
+
+    public void close() {
+        executor.shutdownNow();
+        for (ManagedChannel channel : channels.values()) {
+            channel.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package ds.tutorials.communication.server;
+
+import concert.ConcertService;
+import concert.ShardServiceGrpc;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+
+// Receiving end of a handoff. The reply is only sent once the concerts are on disk here, since
+// the sender drops its copy as soon as it gets one.
+public class ShardServiceImpl extends ShardServiceGrpc.ShardServiceImplBase {
+    private final ConcertCommandServiceImpl commands;
+    // Run after each handoff, in case a concert arrived that our map says belongs elsewhere
+    private final Runnable onHandoff;
+
+    public ShardServiceImpl(ConcertCommandServiceImpl commands, Runnable onHandoff) {
+        this.commands = commands;
+        this.onHandoff = onHandoff;
+    }
+
+    @Override
+    public void handoff(ConcertService.HandoffRequest request, StreamObserver<ConcertService.HandoffResponse> responseObserver) {
+        int accepted;
+        try {
+            accepted = commands.acceptHandoff(request.getConcertsList(), request.getReservationsList());
+        } catch (Exception e) {
+            responseObserver.onError(Status.UNAVAILABLE
+                    .withDescription("Failed to take the concerts: " + e.getMessage()).asRuntimeException());
+            return;
+        }
+        System.out.println("Took over " + accepted + " of " + request.getConcertsCount() + " concerts from " + request.getFrom());
+        responseObserver.onNext(ConcertService.HandoffResponse.newBuilder().setAccepted(accepted).build());
+        responseObserver.onCompleted();
+        onHandoff.run();
+    }
+}
@@ -0,0 +1,154 @@
+package ds.tutorials.communication.server;
+
+import concert.ConcertService;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Point-in-time copy of the concert store, written through a memory-mapped file as
+// [magic][sequence][term][concert count][reservation count] followed by length-prefixed protobuf
+// records. Snapshots written before terms were recorded have no term field and load with term 0.
+public class SnapshotFile {
+    private static final int MAGIC = 0x434e5332; // "CNS2"
+    private static final int MAGIC_WITHOUT_TERM = 0x434e5331; // "CNS1"
+    private static final int HEADER_SIZE = 4 + 8 + 8 + 4 + 4;
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".snap";
+
+    private final long sequence;
+    // Election term of the mutation at sequence
+    private final long term;
+    private final List<ConcertService.Concert> concerts;
+    private final List<ConcertService.ReservationResponse> reservations;
+
+    public SnapshotFile(long sequence, long term, List<ConcertService.Concert> concerts,
+                        List<ConcertService.ReservationResponse> reservations) {
+        this.sequence = sequence;
+        this.term = term;
+        this.concerts = concerts;
+        this.reservations = reservations;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getTerm() {
+        return term;
+    }
+
+    public List<ConcertService.Concert> getConcerts() {
+        return concerts;
+    }
+
+    public List<ConcertService.ReservationResponse> getReservations() {
+        return reservations;
+    }
+
+    // Writes the snapshot to a temporary file and atomically renames it into place
+    public Path write(Path directory) throws IOException {
+        long size = HEADER_SIZE;
+        for (ConcertService.Concert concert : concerts) {
+            size += 4 + concert.getSerializedSize();
+        }
+        for (ConcertService.ReservationResponse reservation : reservations) {
+            size += 4 + reservation.getSerializedSize();
+        }
+        Path target = directory.resolve(fileName(sequence));
+        Path temp = directory.resolve(fileName(sequence) + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(MAGIC).putLong(sequence).putLong(term).putInt(concerts.size()).putInt(reservations.size());
+            for (ConcertService.Concert concert : concerts) {
+                buffer.putInt(concert.getSerializedSize()).put(concert.toByteArray());
+            }
+            for (ConcertService.ReservationResponse reservation : reservations) {
+                buffer.putInt(reservation.getSerializedSize()).put(reservation.toByteArray());
+            }
+            buffer.force();
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return target;
+    }
+
+    // Loads the newest snapshot in the directory, or returns null if there is none
+    public static SnapshotFile loadLatest(Path directory) throws IOException {
+        List<Long> sequences = listSnapshots(directory);
+        if (sequences.isEmpty()) {
+            return null;
+        }
+        long latest = sequences.get(sequences.size() - 1);
+        try (FileChannel channel = FileChannel.open(directory.resolve(fileName(latest)), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int magic = buffer.getInt();
+            if (magic != MAGIC && magic != MAGIC_WITHOUT_TERM) {
+                throw new IOException("Snapshot " + latest + " is not a concert store snapshot");
+            }
+            long sequence = buffer.getLong();
+            long term = magic == MAGIC ? buffer.getLong() : 0;
+            int concertCount = buffer.getInt();
+            int reservationCount = buffer.getInt();
+            List<ConcertService.Concert> concerts = new ArrayList<>(concertCount);
+            for (int i = 0; i < concertCount; i++) {
+                concerts.add(ConcertService.Concert.parseFrom(nextRecord(buffer)));
+            }
+            List<ConcertService.ReservationResponse> reservations = new ArrayList<>(reservationCount);
+            for (int i = 0; i < reservationCount; i++) {
+                reservations.add(ConcertService.ReservationResponse.parseFrom(nextRecord(buffer)));
+            }
+            return new SnapshotFile(sequence, term, concerts, reservations);
+        }
+    }
+
+    // Removes every snapshot older than the given sequence
+    public static void deleteOlderThan(Path directory, long sequence) throws IOException {
+        for (long existing : listSnapshots(directory)) {
+            if (existing < sequence) {
+                Files.deleteIfExists(directory.resolve(fileName(existing)));
+            }
+        }
+    }
+
+    // Removes every snapshot newer than the given sequence
+    public static void deleteNewerThan(Path directory, long sequence) throws IOException {
+        for (long existing : listSnapshots(directory)) {
+            if (existing > sequence) {
+                Files.deleteIfExists(directory.resolve(fileName(existing)));
+            }
+        }
+    }
+
+    private static byte[] nextRecord(MappedByteBuffer buffer) {
+        byte[] record = new byte[buffer.getInt()];
+        buffer.get(record);
+        return record;
+    }
+
+    private static String fileName(long sequence) {
+        return SNAPSHOT_PREFIX + String.format("%020d", sequence) + SNAPSHOT_SUFFIX;
+    }
+
+    private static List<Long> listSnapshots(Path directory) throws IOException {
+        List<Long> sequences = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SNAPSHOT_PREFIX + "*" + SNAPSHOT_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    sequences.add(Long.parseLong(name.substring(SNAPSHOT_PREFIX.length(), name.length() - SNAPSHOT_SUFFIX.length())));
+                } catch (NumberFormatException ignore) {}
+            }
+        }
+        Collections.sort(sequences);
+        return sequences;
+    }
+}
@@ -0,0 +1,233 @@
+package ds.tutorials.communication.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// Append-only log of [length][crc32][payload] records. Appends are group-committed:
+// callers wait in sync() for one fsync that covers every record written before it started.
+// The log is split into segment files named after their starting position so that
+// everything covered by a snapshot can be dropped with deleteSegmentsBefore().
+public class WriteAheadLog implements Closeable {
+    private static final int HEADER_SIZE = 8;
+    private static final String SEGMENT_SUFFIX = ".wal";
+
+    public interface RecordHandler {
+        void onRecord(byte[] record) throws IOException;
+    }
+
+    private final Path directory;
+    private final Object syncLock = new Object();
+    private volatile FileChannel channel;
+    private long segmentBase;
+    private volatile long writtenPosition;
+    private long durablePosition;
+    private boolean syncInProgress = false;
+
+    public WriteAheadLog(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        List<Long> segments = listSegments();
+        this.segmentBase = segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+        this.channel = openSegment(segmentBase);
+        this.writtenPosition = segmentBase + channel.size();
+        this.durablePosition = writtenPosition;
+    }
+
+    // Reads every intact record in segment order and positions the log for appending after the last one
+    public synchronized int replay(RecordHandler handler) throws IOException {
+        int count = 0;
+        for (long base : listSegments()) {
+            if (base == segmentBase) {
+                count += replaySegment(channel, handler, true);
+            } else {
+                try (FileChannel segment = FileChannel.open(segmentPath(base), StandardOpenOption.READ)) {
+                    count += replaySegment(segment, handler, false);
+                }
+            }
+        }
+        long position = channel.size();
+        channel.position(position);
+        writtenPosition = segmentBase + position;
+        synchronized (syncLock) {
+            durablePosition = writtenPosition;
+        }
+        return count;
+    }
+
+    private int replaySegment(FileChannel segment, RecordHandler handler, boolean isTail) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long position = 0;
+        long size = segment.size();
+        int count = 0;
+        while (position + HEADER_SIZE <= size) {
+            header.clear();
+            readFully(segment, header, position);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length < 0 || position + HEADER_SIZE + length > size) {
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(segment, payload, position + HEADER_SIZE);
+            byte[] record = payload.array();
+            if (checksum(record) != checksum) {
+                break;
+            }
+            handler.onRecord(record);
+            position += HEADER_SIZE + length;
+            count++;
+        }
+        if (position < size) {
+            if (isTail) {
+                System.out.println("Truncating " + (size - position) + " bytes of incomplete log tail");
+                segment.truncate(position);
+                segment.force(false);
+            } else {
+                System.err.println("Skipping " + (size - position) + " unreadable bytes in a closed log segment");
+            }
+        }
+        return count;
+    }
+
+    // Writes the record to the log and returns the position that must be synced for it to be durable
+    public synchronized long append(byte[] record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + record.length);
+        buffer.putInt(record.length).putInt(checksum(record)).put(record);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        writtenPosition = segmentBase + channel.position();
+        return writtenPosition;
+    }
+
+    // Blocks until everything up to the given position has been forced to disk
+    public void sync(long position) throws IOException {
+        while (true) {
+            long target;
+            FileChannel current;
+            synchronized (syncLock) {
+                awaitNoSync(position);
+                if (durablePosition >= position) {
+                    return;
+                }
+                syncInProgress = true;
+                target = writtenPosition;
+                current = channel;
+            }
+            boolean forced = false;
+            try {
+                current.force(false);
+                forced = true;
+            } finally {
+                synchronized (syncLock) {
+                    syncInProgress = false;
+                    if (forced && target > durablePosition) {
+                        durablePosition = target;
+                    }
+                    syncLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    // Forces and closes the current segment and starts a new one. Returns the position where the new segment begins.
+    public synchronized long roll() throws IOException {
+        synchronized (syncLock) {
+            awaitNoSync(Long.MAX_VALUE);
+            syncInProgress = true;
+        }
+        try {
+            channel.force(false);
+            channel.close();
+            segmentBase = writtenPosition;
+            channel = openSegment(segmentBase);
+        } finally {
+            synchronized (syncLock) {
+                syncInProgress = false;
+                durablePosition = segmentBase;
+                syncLock.notifyAll();
+            }
+        }
+        return segmentBase;
+    }
+
+    // Removes closed segments that lie entirely before the given position
+    public void deleteSegmentsBefore(long position) throws IOException {
+        long active;
+        synchronized (this) {
+            active = segmentBase;
+        }
+        for (long base : listSegments()) {
+            if (base < position && base < active) {
+                Files.deleteIfExists(segmentPath(base));
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private void awaitNoSync(long position) throws InterruptedIOException {
+        while (syncInProgress && durablePosition < position) {
+            try {
+                syncLock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for log sync");
+            }
+        }
+    }
+
+    private FileChannel openSegment(long base) throws IOException {
+        return FileChannel.open(segmentPath(base), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private Path segmentPath(long base) {
+        return directory.resolve(String.format("%020d", base) + SEGMENT_SUFFIX);
+    }
+
+    private List<Long> listSegments() throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    segments.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException ignore) {}
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static void readFully(FileChannel segment, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = segment.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of log");
+            }
+        }
+    }
+
+    private static int checksum(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        return (int) crc.getValue();
+    }
+}
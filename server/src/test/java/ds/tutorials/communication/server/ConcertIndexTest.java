@@ -0,0 +1,116 @@
+package ds.tutorials.communication.server;
+
+import concert.ConcertService;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConcertIndexTest {
+    private final ConcertIndex index = new ConcertIndex();
+    private final Map<String, ConcertInventory> concerts = new HashMap<>();
+
+    @Test
+    public void pagesWalkTheDateOrderWithoutGapsOrRepeats() {
+        List<String> expected = new ArrayList<>();
+        for (int day = 1; day <= 25; day++) {
+            String id = "c" + (100 - day);
+            add(id, String.format("2025-01-%02d", day), "Concert " + day);
+            expected.add(id);
+        }
+        List<String> listed = new ArrayList<>();
+        String token = "";
+        int pages = 0;
+        do {
+            ConcertService.ListConcertsResponse page = index.list(ConcertService.ListConcertsRequest.newBuilder()
+                    .setPageSize(10)
+                    .setPageToken(token)
+                    .build(), concerts);
+            listed.addAll(ids(page));
+            token = page.getNextPageToken();
+            pages++;
+        } while (!token.isEmpty());
+        assertEquals(3, pages);
+        assertEquals(expected, listed);
+    }
+
+    @Test
+    public void dateRangeIncludesBothEndsWhateverTheId() {
+        add("before", "2025-03-01", "a");
+        add("from", "2025-03-02", "b");
+        add("\uFFFFto", "2025-03-04", "c");
+        add("to", "2025-03-04", "d");
+        add("past-to", "2025-03-04T20:00", "e");
+        add("after", "2025-03-05", "f");
+        ConcertService.ListConcertsResponse response = index.list(ConcertService.ListConcertsRequest.newBuilder()
+                .setDateFrom("2025-03-02")
+                .setDateTo("2025-03-04")
+                .build(), concerts);
+        assertEquals(Arrays.asList("from", "to", "\uFFFFto"), ids(response));
+    }
+
+    @Test
+    public void namePrefixAppliesTheDateRangeToo() {
+        add("1", "2025-05-01", "Rock Night");
+        add("2", "2025-06-01", "rock day");
+        add("3", "2025-06-02", "Jazz");
+        ConcertService.ListConcertsResponse response = index.list(ConcertService.ListConcertsRequest.newBuilder()
+                .setNamePrefix("ROCK")
+                .setDateFrom("2025-06-01")
+                .build(), concerts);
+        assertEquals(Arrays.asList("2"), ids(response));
+    }
+
+    @Test
+    public void namePrefixIncludesNamesWhateverFollowsIt() {
+        add("1", "2025-05-01", "Rock\uFFFF");
+        add("2", "2025-05-02", "rock night");
+        add("3", "2025-05-03", "Rocl");
+        add("4", "2025-05-04", "\uFFFF\uFFFF");
+        add("5", "2025-05-05", "\uFFFF");
+        assertEquals(Arrays.asList("2", "1"), ids(index.list(ConcertService.ListConcertsRequest.newBuilder()
+                .setNamePrefix("rock")
+                .build(), concerts)));
+        assertEquals(Arrays.asList("4"), ids(index.list(ConcertService.ListConcertsRequest.newBuilder()
+                .setNamePrefix("\uFFFF\uFFFF")
+                .build(), concerts)));
+    }
+
+    @Test
+    public void aMovedOrCancelledConcertLeavesItsOldPlace() {
+        add("moved", "2025-01-01", "x");
+        add("cancelled", "2025-01-02", "y");
+        add("moved", "2025-02-01", "x");
+        index.remove("cancelled");
+        concerts.remove("cancelled");
+        ConcertService.ListConcertsResponse january = index.list(ConcertService.ListConcertsRequest.newBuilder()
+                .setDateTo("2025-01-31")
+                .build(), concerts);
+        assertTrue(january.getConcertsList().isEmpty());
+    }
+
+    private void add(String id, String date, String name) {
+        ConcertService.Concert concert = ConcertService.Concert.newBuilder()
+                .setId(id)
+                .setName(name)
+                .setDate(date)
+                .putSeatTiers("VIP", 10)
+                .build();
+        concerts.put(id, new ConcertInventory(concert));
+        index.put(concert);
+    }
+
+    private static List<String> ids(ConcertService.ListConcertsResponse response) {
+        List<String> ids = new ArrayList<>();
+        for (ConcertService.Concert concert : response.getConcertsList()) {
+            ids.add(concert.getId());
+        }
+        return ids;
+    }
+}
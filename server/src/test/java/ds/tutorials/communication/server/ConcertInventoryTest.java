@@ -0,0 +1,110 @@
+package ds.tutorials.communication.server;
+
+import concert.ConcertService;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConcertInventoryTest {
+    @Test
+    public void reservesOnlyWhatIsLeft() {
+        ConcertInventory concert = inventory(5, 0);
+        assertEquals(ConcertInventory.ReserveResult.RESERVED, concert.tryReserve("VIP", 3, false));
+        assertEquals(ConcertInventory.ReserveResult.NOT_ENOUGH_SEATS, concert.tryReserve("VIP", 3, false));
+        assertEquals(ConcertInventory.ReserveResult.NOT_ENOUGH_SEATS, concert.tryReserve("Balcony", 1, false));
+        assertEquals(2, concert.getAvailableSeats("VIP"));
+    }
+
+    @Test
+    public void givesTheSeatsBackWhenTheAfterPartyIsSoldOut() {
+        ConcertInventory concert = inventory(5, 1);
+        assertEquals(ConcertInventory.ReserveResult.NOT_ENOUGH_AFTER_PARTY, concert.tryReserve("VIP", 2, true));
+        assertEquals(5, concert.getAvailableSeats("VIP"));
+        assertEquals(1, concert.getAfterPartyTickets());
+        assertEquals(ConcertInventory.ReserveResult.RESERVED, concert.tryReserve("VIP", 1, true));
+        assertEquals(0, concert.getAfterPartyTickets());
+    }
+
+    @Test
+    public void concurrentReservationsNeverOversell() throws InterruptedException {
+        ConcertInventory concert = inventory(1000, 0);
+        AtomicInteger reserved = new AtomicInteger();
+        runConcurrently(8, () -> {
+            for (int i = 0; i < 500; i++) {
+                if (concert.tryReserve("VIP", 1, false) == ConcertInventory.ReserveResult.RESERVED) {
+                    reserved.incrementAndGet();
+                }
+            }
+        });
+        assertEquals(1000, reserved.get());
+        assertEquals(0, concert.getAvailableSeats("VIP"));
+    }
+
+    @Test
+    public void growingTheTiersKeepsConcurrentReservations() throws InterruptedException {
+        ConcertInventory concert = inventory(100_000, 0);
+        AtomicInteger reserved = new AtomicInteger();
+        runConcurrently(4, () -> {
+            for (int i = 0; i < 5000; i++) {
+                if (concert.tryReserve("VIP", 1, false) == ConcertInventory.ReserveResult.RESERVED) {
+                    reserved.incrementAndGet();
+                }
+            }
+        }, () -> {
+            // Well past the initial capacity, so the counters are copied several times
+            for (int tier = 0; tier < 50; tier++) {
+                concert.addSeats("Tier " + tier, tier);
+            }
+        });
+        assertEquals(20_000, reserved.get());
+        assertEquals(80_000, concert.getAvailableSeats("VIP"));
+        ConcertService.Concert built = concert.toConcert();
+        assertEquals(51, built.getSeatTiersCount());
+        for (int tier = 0; tier < 50; tier++) {
+            assertEquals(tier, built.getSeatTiersOrThrow("Tier " + tier));
+        }
+    }
+
+    private static ConcertInventory inventory(int vipSeats, int afterParty) {
+        return new ConcertInventory(ConcertService.Concert.newBuilder()
+                .setId("c")
+                .putSeatTiers("VIP", vipSeats)
+                .setAfterPartyTickets(afterParty)
+                .build());
+    }
+
+    // Runs copies of the first task on the given number of threads, plus each other task on one of
+    // its own, all started together
+    private static void runConcurrently(int threads, Runnable task, Runnable... others) throws InterruptedException {
+        List<Runnable> tasks = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            tasks.add(task);
+        }
+        for (Runnable other : others) {
+            tasks.add(other);
+        }
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> running = new ArrayList<>();
+        for (Runnable each : tasks) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                each.run();
+            });
+            thread.start();
+            running.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : running) {
+            thread.join();
+        }
+    }
+}
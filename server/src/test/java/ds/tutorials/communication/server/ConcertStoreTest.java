@@ -0,0 +1,105 @@
+package ds.tutorials.communication.server;
+
+import concert.ConcertService;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConcertStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recoversFromTheSnapshotAndTheLogAfterIt() throws Exception {
+        String dir = folder.getRoot().getPath();
+        try (ConcertStore store = new ConcertStore(dir)) {
+            store.commit(put("a", 10));
+            store.snapshot();
+            store.commit(put("b", 10));
+            store.awaitDurable(store.reserve(reservation("r1", "a", 4)));
+        }
+        try (ConcertStore store = new ConcertStore(dir)) {
+            assertEquals(3, store.getSequence());
+            assertEquals(new HashSet<>(Arrays.asList("a", "b")), store.getConcerts().keySet());
+            assertEquals(6, store.getConcerts().get("a").getAvailableSeats("VIP"));
+            assertTrue(store.getReservations().containsKey("r1"));
+        }
+    }
+
+    @Test
+    public void installedSnapshotReplacesTheStateAndTheLogBeforeIt() throws Exception {
+        String dir = folder.getRoot().getPath();
+        try (ConcertStore store = new ConcertStore(dir)) {
+            store.setTerm(1);
+            for (int i = 0; i < 7; i++) {
+                store.commit(put("diverged-" + i, 10));
+            }
+            // Our own snapshot of the diverged history, past the sequence the leader sends
+            store.snapshot();
+            store.commit(put("diverged-7", 10));
+            store.installSnapshot(ConcertService.StoreSnapshot.newBuilder()
+                    .setSequence(5)
+                    .setTerm(2)
+                    .addConcerts(concert("leader", 7))
+                    .addReservations(ConcertService.ReservationResponse.newBuilder().setReservationId("r1"))
+                    .build());
+            assertEquals(5, store.getSequence());
+            assertEquals(2, store.getLastTerm());
+            assertEquals(new HashSet<>(Arrays.asList("leader")), store.getConcerts().keySet());
+            store.setTerm(3);
+            store.awaitDurable(store.commit(put("after", 10)));
+        }
+        try (ConcertStore store = new ConcertStore(dir)) {
+            assertEquals(6, store.getSequence());
+            assertEquals(3, store.getLastTerm());
+            assertEquals(new HashSet<>(Arrays.asList("leader", "after")), store.getConcerts().keySet());
+            assertEquals(7, store.getConcerts().get("leader").getAvailableSeats("VIP"));
+            assertTrue(store.getReservations().containsKey("r1"));
+        }
+    }
+
+    @Test
+    public void rejectsReplicatedMutationsFromAnotherTerm() throws Exception {
+        try (ConcertStore store = new ConcertStore(folder.getRoot().getPath())) {
+            store.applyReplicated(put("a", 10).setSequence(1).setTerm(2).build());
+            assertEquals(-1, store.applyReplicated(put("a", 10).setSequence(1).setTerm(2).build()));
+            expectOutOfStep(store, put("a", 10).setSequence(1).setTerm(3).build());
+            expectOutOfStep(store, put("b", 10).setSequence(2).setTerm(1).build());
+            expectOutOfStep(store, put("b", 10).setSequence(3).setTerm(2).build());
+            assertEquals(1, store.getSequence());
+        }
+    }
+
+    private static void expectOutOfStep(ConcertStore store, ConcertService.Mutation mutation) throws IOException {
+        try {
+            store.applyReplicated(mutation);
+            fail("Applied " + mutation.getSequence() + " from term " + mutation.getTerm());
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    private static ConcertService.Concert concert(String id, int seats) {
+        return ConcertService.Concert.newBuilder().setId(id).setName(id).setDate("2025-06-01").putSeatTiers("VIP", seats).build();
+    }
+
+    private static ConcertService.Mutation.Builder put(String id, int seats) {
+        return ConcertService.Mutation.newBuilder().setPutConcert(concert(id, seats));
+    }
+
+    private static ConcertService.ReservationRecord reservation(String id, String concertId, int count) {
+        return ConcertService.ReservationRecord.newBuilder()
+                .setConcertId(concertId)
+                .setTier("VIP")
+                .setCount(count)
+                .setReservation(ConcertService.ReservationResponse.newBuilder().setReservationId(id).setConcertId(concertId))
+                .build();
+    }
+}
@@ -0,0 +1,104 @@
+package ds.tutorials.communication.server;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class WriteAheadLogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysRecordsInOrderAfterReopening() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        try (WriteAheadLog log = new WriteAheadLog(dir)) {
+            log.sync(append(log, "one", "two", "three"));
+        }
+        assertEquals(Arrays.asList("one", "two", "three"), replay(dir));
+    }
+
+    @Test
+    public void truncatesATornTailAndAppendsAfterTheLastIntactRecord() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        long intact;
+        try (WriteAheadLog log = new WriteAheadLog(dir)) {
+            intact = append(log, "one", "two");
+            log.sync(intact);
+        }
+        // A record whose header made it to disk but whose payload didn't
+        Path segment = firstSegment(dir);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 100, 1, 2, 3, 4, 'p', 'a', 'r'}));
+        }
+
+        try (WriteAheadLog log = new WriteAheadLog(dir)) {
+            List<String> records = new ArrayList<>();
+            assertEquals(2, log.replay(record -> records.add(new String(record, StandardCharsets.UTF_8))));
+            assertEquals(Arrays.asList("one", "two"), records);
+            assertEquals(intact, Files.size(segment));
+            log.sync(append(log, "three"));
+        }
+        assertEquals(Arrays.asList("one", "two", "three"), replay(dir));
+    }
+
+    @Test
+    public void stopsAtARecordWithABadChecksum() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        long first;
+        try (WriteAheadLog log = new WriteAheadLog(dir)) {
+            first = append(log, "one");
+            log.sync(append(log, "two", "three"));
+        }
+        // Flip the first payload byte of "two"
+        try (FileChannel channel = FileChannel.open(firstSegment(dir), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{'x'}), first + 8);
+        }
+        assertEquals(Arrays.asList("one"), replay(dir));
+        assertEquals(first, Files.size(firstSegment(dir)));
+    }
+
+    @Test
+    public void dropsSegmentsCoveredByARoll() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        try (WriteAheadLog log = new WriteAheadLog(dir)) {
+            append(log, "before");
+            long start = log.roll();
+            log.sync(append(log, "after"));
+            log.deleteSegmentsBefore(start);
+        }
+        assertEquals(Arrays.asList("after"), replay(dir));
+    }
+
+    private static long append(WriteAheadLog log, String... records) throws IOException {
+        long position = -1;
+        for (String record : records) {
+            position = log.append(record.getBytes(StandardCharsets.UTF_8));
+        }
+        return position;
+    }
+
+    private static List<String> replay(Path dir) throws IOException {
+        List<String> records = new ArrayList<>();
+        try (WriteAheadLog log = new WriteAheadLog(dir)) {
+            log.replay(record -> records.add(new String(record, StandardCharsets.UTF_8)));
+        }
+        return records;
+    }
+
+    private static Path firstSegment(Path dir) {
+        return dir.resolve(String.format("%020d", 0) + ".wal");
+    }
+}
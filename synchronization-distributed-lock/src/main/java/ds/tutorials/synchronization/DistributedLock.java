@@ -7,81 +7,383 @@ import org.apache.zookeeper.Watcher;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.util.Collections;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+// ZooKeeper lock shared by every thread in this JVM. Local callers queue here and the JVM takes
+// a single place in the ZooKeeper queue on their behalf. Once it holds the lock, it is handed
+// from one local caller to the next without touching ZooKeeper until the lease runs out or
+// nobody local is waiting; then the znode is deleted so other processes get their turn.
+// Processes queue fairly in znode sequence order, each watching only the node just ahead of it.
+// If every local caller gives up while the JVM is still queued, its znode and watch go at once,
+// so other processes don't wait behind a place nobody wants.
 public class DistributedLock implements Watcher {
-    private String childPath;
+    public static final long DEFAULT_LEASE_MILLIS = 100;
+
     private ZooKeeperClient client;
     private String lockPath;
-    private boolean isAcquired = false;
-    private String watchedNode;
+    private final long leaseNanos;
     CountDownLatch startFlag = new CountDownLatch(1);
-    CountDownLatch eventReceivedFlag;
     public static String zooKeeperUrl ;
     private static String lockProcessPath = "/lp_";
+    // Handoffs started while another handoff is running on the same thread, see handOver()
+    private static final ThreadLocal<Deque<CompletableFuture<Void>>> pendingHandoffs = new ThreadLocal<>();
+
+    // All guarded by this
+    private final Deque<CompletableFuture<Void>> localWaiters = new ArrayDeque<>();
+    private String childPath;
+    // The node ahead of childPath in the queue, and the watch waiting for it to go
+    private String predecessorPath;
+    private Watcher predecessorWatch;
+    private boolean zkHeld = false;
+    private boolean zkAcquiring = false;
+    private boolean localHeld = false;
+    private long leaseExpiresAt;
 
     public static void setZooKeeperURL(String url){
         zooKeeperUrl = url;
     }
+
     public DistributedLock(String lockName) throws IOException, KeeperException, InterruptedException {
+        this(lockName, DEFAULT_LEASE_MILLIS);
+    }
+
+    public DistributedLock(String lockName, long leaseMillis) throws IOException, KeeperException, InterruptedException {
         this.lockPath = "/" + lockName;
+        this.leaseNanos = TimeUnit.MILLISECONDS.toNanos(leaseMillis);
         client = new ZooKeeperClient(zooKeeperUrl, 5000, this);
         startFlag.await();
         if (client.CheckExists(lockPath) == false) {
             createRootNode();
         }
-	createChildNode();
     }
 
     private void createRootNode() throws
             InterruptedException, UnsupportedEncodingException, KeeperException {
-        lockPath = client.createNode(lockPath, false, CreateMode.PERSISTENT);
-        System.out.println("Root node created at " + lockPath);
+        try {
+            lockPath = client.createNode(lockPath, false, CreateMode.PERSISTENT);
+            System.out.println("Root node created at " + lockPath);
+        } catch (KeeperException.NodeExistsException ignore) {
+            // Another process created it first
+        }
     }
 
-    private void createChildNode() throws
-            InterruptedException, UnsupportedEncodingException, KeeperException {
-        childPath = client.createNode(lockPath + lockProcessPath,
-                false, CreateMode.EPHEMERAL_SEQUENTIAL);
-        System.out.println("Child node created at " + childPath);
+    public void acquireLock() throws KeeperException, InterruptedException {
+        lockInterruptibly();
     }
 
-    public void acquireLock() throws KeeperException, InterruptedException, UnsupportedEncodingException {
-        String smallestNode = findSmallestNodePath();
-        if (smallestNode.equals(childPath)) {
-            isAcquired = true;
-        } else {
-            do {
-                System.out.println("Lock is currently acquired by node "
-                        + smallestNode + " .. hence waiting..");
-                eventReceivedFlag = new CountDownLatch(1);
-                watchedNode = smallestNode;
-                client.addWatch(smallestNode);
-                eventReceivedFlag.await();
-                smallestNode = findSmallestNodePath();
-            } while (!smallestNode.equals(childPath));
-            isAcquired = true;
-        }
+    // Gives up the place in the queue if the thread is interrupted while waiting
+    public void lockInterruptibly() throws KeeperException, InterruptedException {
+        awaitAcquired(acquireLockAsync(), -1);
+    }
+
+    // Returns false, without holding the lock, if it could not be acquired within the timeout
+    public boolean tryLock(long timeout, TimeUnit unit) throws KeeperException, InterruptedException {
+        return awaitAcquired(acquireLockAsync(), Math.max(0, unit.toNanos(timeout)));
     }
 
     public void releaseLock() throws KeeperException, InterruptedException {
-        if (!isAcquired) {
-            throw new IllegalStateException("Lock needs to be acquired first to release");
+        await(releaseLockAsync());
+    }
+
+    // Completes once the caller holds the lock. No thread waits in the meantime; the future
+    // completes on whichever thread hands the lock over.
+    public CompletableFuture<Void> acquireLockAsync() {
+        CompletableFuture<Void> acquired = new CompletableFuture<>();
+        boolean startZkAcquire = false;
+        synchronized (this) {
+            localWaiters.add(acquired);
+            if (!zkHeld && !zkAcquiring) {
+                zkAcquiring = true;
+                startZkAcquire = true;
+            }
+        }
+        if (startZkAcquire) {
+            acquireZk();
         }
-        client.delete(childPath);
-        isAcquired = false;
+        return acquired;
     }
 
-    private String findSmallestNodePath() throws
-            KeeperException, InterruptedException {
-        List<String> childrenNodePaths = null;
-        childrenNodePaths = client.getChildrenNodePaths(lockPath);
-        Collections.sort(childrenNodePaths);
-        String smallestPath = childrenNodePaths.get(0);
-        smallestPath = lockPath + "/" + smallestPath;
-        return smallestPath;
+    public CompletableFuture<Void> releaseLockAsync() {
+        CompletableFuture<Void> next = null;
+        String releasedChild = null;
+        boolean requeue = false;
+        synchronized (this) {
+            if (!localHeld) {
+                CompletableFuture<Void> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new IllegalStateException("Lock needs to be acquired first to release"));
+                return failed;
+            }
+            if (!localWaiters.isEmpty() && System.nanoTime() < leaseExpiresAt) {
+                // Lease still valid: hand over locally and keep our place in ZooKeeper
+                next = localWaiters.poll();
+            } else {
+                localHeld = false;
+                zkHeld = false;
+                releasedChild = childPath;
+                childPath = null;
+                // Local callers are still waiting, so line up again behind the other processes
+                if (!localWaiters.isEmpty()) {
+                    zkAcquiring = true;
+                    requeue = true;
+                }
+            }
+        }
+        if (next != null) {
+            handOver(next);
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> deleted = client.deleteAsync(releasedChild);
+        if (requeue) {
+            deleted.whenComplete((ignored, error) -> acquireZk());
+        }
+        return deleted;
+    }
+
+    // Takes a place in the ZooKeeper queue on behalf of the local waiters
+    private void acquireZk() {
+        client.createNodeAsync(lockPath + lockProcessPath, CreateMode.EPHEMERAL_SEQUENTIAL,
+                "".getBytes(StandardCharsets.UTF_8)).whenComplete((path, error) -> {
+            if (error != null) {
+                onZkFailed(error);
+                return;
+            }
+            boolean wanted;
+            synchronized (this) {
+                // Every local waiter may have given up while the node was being created
+                wanted = !localWaiters.isEmpty();
+                if (wanted) {
+                    childPath = path;
+                } else {
+                    zkAcquiring = false;
+                }
+            }
+            if (!wanted) {
+                client.deleteAsync(path);
+                return;
+            }
+            attemptZk(path);
+        });
+    }
+
+    private void attemptZk(String path) {
+        // The node was given up since this attempt was scheduled
+        if (!isCurrentNode(path)) {
+            return;
+        }
+        String nodeName = path.substring(lockPath.length() + 1);
+        client.getChildrenAsync(lockPath).thenCompose(children -> {
+            // Readers of a DistributedReadWriteLock on the same name queue here too
+            ZooKeeperClient.sortBySequence(children);
+            int position = children.indexOf(nodeName);
+            if (position < 0) {
+                throw new IllegalStateException("Lock node " + path + " no longer exists");
+            }
+            if (position == 0) {
+                onZkAcquired(path);
+                return CompletableFuture.completedFuture(null);
+            }
+            // Only the next node in line is woken when a node goes away, instead of every waiter.
+            // The predecessor may have given up rather than released, so check the order again.
+            String predecessor = lockPath + "/" + children.get(position - 1);
+            Watcher onDeleted = event -> {
+                if (event.getType() == Event.EventType.NodeDeleted) {
+                    attemptZk(path);
+                }
+            };
+            if (!watchPredecessor(path, predecessor, onDeleted)) {
+                return CompletableFuture.completedFuture(null);
+            }
+            return client.existsAsync(predecessor, onDeleted).thenAccept(exists -> {
+                // Deleted between the listing and the watch, so no event will come; look again
+                if (!exists) {
+                    attemptZk(path);
+                } else if (!isCurrentNode(path)) {
+                    // Given up while the watch was being set, after abandon() tried to remove it
+                    client.removeWatchAsync(predecessor, onDeleted);
+                }
+            });
+        }).whenComplete((ignored, error) -> {
+            // An attempt for a node lost with an expired session is stale; a new one is under way
+            if (error != null && isCurrentNode(path)) {
+                onZkFailed(error);
+            }
+        });
+    }
+
+    private synchronized boolean isCurrentNode(String path) {
+        return path.equals(childPath);
+    }
+
+    // Records the watch so abandon() can remove it. Returns false if the node was given up.
+    private synchronized boolean watchPredecessor(String path, String predecessor, Watcher watch) {
+        if (!path.equals(childPath)) {
+            return false;
+        }
+        predecessorPath = predecessor;
+        predecessorWatch = watch;
+        return true;
+    }
+
+    private void onZkAcquired(String path) {
+        CompletableFuture<Void> next;
+        String unusedChild = null;
+        synchronized (this) {
+            if (!path.equals(childPath)) {
+                // Given up while this attempt was listing the queue
+                return;
+            }
+            zkAcquiring = false;
+            predecessorPath = null;
+            predecessorWatch = null;
+            next = localWaiters.poll();
+            if (next == null) {
+                // Every local waiter gave up in the meantime
+                unusedChild = childPath;
+                childPath = null;
+            } else {
+                zkHeld = true;
+                localHeld = true;
+                leaseExpiresAt = System.nanoTime() + leaseNanos;
+            }
+        }
+        if (next == null) {
+            client.deleteAsync(unusedChild);
+            return;
+        }
+        handOver(next);
+    }
+
+    // Removes a waiter that stopped waiting. Returns false if it was already given the lock.
+    // The last local waiter to leave takes the queue node with it, see the class comment.
+    private boolean abandon(CompletableFuture<Void> waiter) {
+        String abandonedChild = null;
+        String watchedPath = null;
+        Watcher watch = null;
+        synchronized (this) {
+            if (!localWaiters.remove(waiter)) {
+                return false;
+            }
+            // With no node yet, the create's callback deletes it instead
+            if (localWaiters.isEmpty() && zkAcquiring && childPath != null) {
+                zkAcquiring = false;
+                abandonedChild = childPath;
+                childPath = null;
+                watchedPath = predecessorPath;
+                watch = predecessorWatch;
+                predecessorPath = null;
+                predecessorWatch = null;
+            }
+        }
+        if (watch != null) {
+            client.removeWatchAsync(watchedPath, watch);
+        }
+        if (abandonedChild != null) {
+            client.deleteAsync(abandonedChild);
+        }
+        return true;
+    }
+
+    // Completing a waiter runs its continuation, which may release and complete the next waiter
+    // in turn. Those nested handoffs are queued and run here in a loop instead of recursing.
+    private static void handOver(CompletableFuture<Void> next) {
+        Deque<CompletableFuture<Void>> pending = pendingHandoffs.get();
+        if (pending != null) {
+            pending.add(next);
+            return;
+        }
+        pending = new ArrayDeque<>();
+        pendingHandoffs.set(pending);
+        try {
+            for (CompletableFuture<Void> current = next; current != null; current = pending.poll()) {
+                current.complete(null);
+            }
+        } finally {
+            pendingHandoffs.remove();
+        }
+    }
+
+    // Fails everyone waiting locally and gives up the queue position so nobody behind it is blocked
+    private void onZkFailed(Throwable error) {
+        List<CompletableFuture<Void>> failed;
+        String abandonedChild;
+        synchronized (this) {
+            zkAcquiring = false;
+            abandonedChild = childPath;
+            childPath = null;
+            predecessorPath = null;
+            predecessorWatch = null;
+            failed = new ArrayList<>(localWaiters);
+            localWaiters.clear();
+        }
+        if (abandonedChild != null) {
+            client.deleteAsync(abandonedChild);
+        }
+        for (CompletableFuture<Void> waiter : failed) {
+            waiter.completeExceptionally(error);
+        }
+    }
+
+    // Waits for a queued acquire, forever if timeoutNanos is negative
+    private boolean awaitAcquired(CompletableFuture<Void> acquired, long timeoutNanos)
+            throws KeeperException, InterruptedException {
+        try {
+            if (timeoutNanos < 0) {
+                await(acquired);
+            } else {
+                await(acquired, timeoutNanos);
+            }
+            return true;
+        } catch (TimeoutException e) {
+            if (abandon(acquired)) {
+                return false;
+            }
+            // Handed over just as the wait timed out
+            await(acquired);
+            return true;
+        } catch (InterruptedException e) {
+            if (!abandon(acquired)) {
+                // Already on its way to this caller, so pass it straight on
+                acquired.thenRun(this::releaseLockAsync);
+            }
+            throw e;
+        }
+    }
+
+    private static void await(CompletableFuture<Void> future, long timeoutNanos)
+            throws KeeperException, InterruptedException, TimeoutException {
+        try {
+            future.get(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    private static void await(CompletableFuture<Void> future) throws KeeperException, InterruptedException {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    private static KeeperException unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof KeeperException) {
+            return (KeeperException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        throw new IllegalStateException(cause);
     }
 
     @Override
@@ -94,13 +396,28 @@ public class DistributedLock implements Watcher {
                 System.out.println("Successful connected to the server");
                 startFlag.countDown();
             }
+        } else if (Event.KeeperState.Expired == state) {
+            onSessionExpired();
         }
-        if (Event.EventType.NodeDeleted.equals(type)){
-            if (watchedNode != null && eventReceivedFlag
-                    != null && event.getPath().equals(watchedNode)){
-                System.out.println("NodeDelete event received. Trying to get the lock..");
-                eventReceivedFlag.countDown();
+    }
+
+    // The queue node went with the expired session. A waiting acquire lines up again on the new
+    // session; a holder can no longer be sure nobody else has the lock, so it is only warned.
+    private void onSessionExpired() {
+        boolean requeue;
+        synchronized (this) {
+            requeue = zkAcquiring;
+            if (requeue) {
+                childPath = null;
+                predecessorPath = null;
+                predecessorWatch = null;
             }
+            if (zkHeld) {
+                System.err.println("ZooKeeper session expired while holding " + lockPath);
+            }
+        }
+        if (requeue) {
+            acquireZk();
         }
     }
 }
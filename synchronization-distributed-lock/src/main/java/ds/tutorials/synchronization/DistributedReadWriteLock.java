@@ -0,0 +1,133 @@
+package ds.tutorials.synchronization;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+// Shared/exclusive lock on ZooKeeper. Every acquire adds a read- or write- sequential node and
+// the queue is served in sequence order: a reader only waits for writers ahead of it, so readers
+// in a row hold the lock together, and a writer waits for everything ahead of it. Readers that
+// arrive after a waiting writer queue behind it, so a steady stream of readers can't starve
+// writers. Nodes of a DistributedLock with the same name count as writers, so the two can guard
+// the same resource.
+public class DistributedReadWriteLock implements Watcher {
+    private static final String READ_PREFIX = "/read-";
+    private static final String WRITE_PREFIX = "/write-";
+
+    private ZooKeeperClient client;
+    private String lockPath;
+    CountDownLatch startFlag = new CountDownLatch(1);
+
+    public DistributedReadWriteLock(String lockName) throws IOException, KeeperException, InterruptedException {
+        this.lockPath = "/" + lockName;
+        client = new ZooKeeperClient(DistributedLock.zooKeeperUrl, 5000, this);
+        startFlag.await();
+        if (!client.CheckExists(lockPath)) {
+            try {
+                client.createNode(lockPath, false, CreateMode.PERSISTENT);
+            } catch (KeeperException.NodeExistsException ignore) {
+                // Another process created it first
+            }
+        }
+    }
+
+    // Each returns the node that represents the hold; pass it to release()
+    public String acquireReadLock() throws KeeperException, InterruptedException {
+        return ZooKeeperClient.join(acquireReadLockAsync());
+    }
+
+    public String acquireWriteLock() throws KeeperException, InterruptedException {
+        return ZooKeeperClient.join(acquireWriteLockAsync());
+    }
+
+    public void release(String node) throws KeeperException, InterruptedException {
+        ZooKeeperClient.join(releaseAsync(node));
+    }
+
+    public CompletableFuture<String> acquireReadLockAsync() {
+        return acquire(READ_PREFIX);
+    }
+
+    public CompletableFuture<String> acquireWriteLockAsync() {
+        return acquire(WRITE_PREFIX);
+    }
+
+    public CompletableFuture<Void> releaseAsync(String node) {
+        return client.deleteAsync(node);
+    }
+
+    public void close() throws InterruptedException {
+        client.close();
+    }
+
+    private CompletableFuture<String> acquire(String prefix) {
+        CompletableFuture<String> acquired = new CompletableFuture<>();
+        client.createNodeAsync(lockPath + prefix, CreateMode.EPHEMERAL_SEQUENTIAL,
+                "".getBytes(StandardCharsets.UTF_8)).whenComplete((path, error) -> {
+            if (error != null) {
+                acquired.completeExceptionally(error);
+            } else {
+                attempt(path, READ_PREFIX.equals(prefix), acquired);
+            }
+        });
+        return acquired;
+    }
+
+    private void attempt(String path, boolean shared, CompletableFuture<String> acquired) {
+        String nodeName = path.substring(lockPath.length() + 1);
+        client.getChildrenAsync(lockPath).thenCompose(children -> {
+            ZooKeeperClient.sortBySequence(children);
+            int position = children.indexOf(nodeName);
+            if (position < 0) {
+                throw new IllegalStateException("Lock node " + path + " no longer exists");
+            }
+            String blocker = shared ? lastWriterBefore(children, position) : position == 0 ? null : children.get(position - 1);
+            if (blocker == null) {
+                acquired.complete(path);
+                return CompletableFuture.completedFuture(null);
+            }
+            // Only the node we wait on is watched, so a release doesn't wake the whole queue
+            Watcher onDeleted = event -> {
+                if (event.getType() == Event.EventType.NodeDeleted) {
+                    attempt(path, shared, acquired);
+                }
+            };
+            return client.existsAsync(lockPath + "/" + blocker, onDeleted).thenAccept(exists -> {
+                // Deleted between the listing and the watch, so no event will come; look again
+                if (!exists) {
+                    attempt(path, shared, acquired);
+                }
+            });
+        }).whenComplete((ignored, error) -> {
+            if (error != null) {
+                // Give up the place in the queue so nobody behind it is blocked
+                client.deleteAsync(path);
+                acquired.completeExceptionally(error);
+            }
+        });
+    }
+
+    private static String lastWriterBefore(List<String> sortedChildren, int position) {
+        for (int i = position - 1; i >= 0; i--) {
+            String child = sortedChildren.get(i);
+            if (!child.startsWith(READ_PREFIX.substring(1))) {
+                return child;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void process(WatchedEvent event) {
+        if (event.getState() == Event.KeeperState.SyncConnected && event.getType() == Event.EventType.None) {
+            startFlag.countDown();
+        }
+    }
+}
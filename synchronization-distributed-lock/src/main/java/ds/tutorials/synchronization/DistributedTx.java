@@ -1,20 +1,35 @@
 package ds.tutorials.synchronization;
 
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 
 import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+// Two-phase commit over ZooKeeper with presumed abort. A transaction is a node under
+// /transactions that the coordinator creates with an ephemeral "coordinator" child, so others can
+// tell whether it is still alive. Participants add a child each and write their vote to it. The
+// coordinator writes the outcome to the transaction node; only commits are also recorded under
+// /tx_decisions, since a transaction with no record there was aborted.
 public abstract class DistributedTx implements Watcher {
     public static final String VOTE_COMMIT = "vote_commit";
     public static final String VOTE_ABORT = "vote_abort";
     public static final String GLOBAL_COMMIT = "global_commit";
     public static final String GLOBAL_ABORT = "global_abort";
 
+    static final String TRANSACTIONS_ROOT = "/transactions";
+    static final String DECISIONS_ROOT = "/tx_decisions";
+    static final String COORDINATOR_MARKER = "coordinator";
+
     static String zooKeeperUrl;
     String currentTransaction;
     ZooKeeperClient client;
     DistributedTxListener listener;
+    private final CountDownLatch connected = new CountDownLatch(1);
+    private boolean namespacesCreated = false;
 
     public static void setZooKeeperURL(String url){
         zooKeeperUrl = url;
@@ -24,10 +39,62 @@ public abstract class DistributedTx implements Watcher {
     }
 
     public void start(String transactionId, String participantId) throws IOException {
-        client = new ZooKeeperClient(zooKeeperUrl, 5000, this);
+        connect();
         onStartTransaction(transactionId, participantId);
     }
 
+    // One session per instance, reused by every transaction it runs
+    void connect() throws IOException {
+        if (client == null) {
+            client = new ZooKeeperClient(zooKeeperUrl, 5000, event -> {
+                if (event.getState() == Event.KeeperState.SyncConnected) {
+                    connected.countDown();
+                }
+                process(event);
+            });
+        }
+        try {
+            if (!connected.await(5000, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out connecting to ZooKeeper at " + zooKeeperUrl);
+            }
+            if (!namespacesCreated) {
+                ensureNode(TRANSACTIONS_ROOT);
+                ensureNode(DECISIONS_ROOT);
+                namespacesCreated = true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while connecting to ZooKeeper", e);
+        } catch (KeeperException e) {
+            throw new IOException("Failed to set up transaction nodes: " + e.getMessage(), e);
+        }
+    }
+
+    private void ensureNode(String path) throws KeeperException, InterruptedException {
+        if (!client.CheckExists(path)) {
+            try {
+                client.createNode(path, false, CreateMode.PERSISTENT, new byte[0]);
+            } catch (KeeperException.NodeExistsException ignore) {
+                // Another process created it first
+            }
+        }
+    }
+
+    static String transactionPath(String transactionId) {
+        return TRANSACTIONS_ROOT + "/" + transactionId;
+    }
+
+    static String decisionPath(String transactionId) {
+        return DECISIONS_ROOT + "/" + transactionId;
+    }
+
+    public void close() throws InterruptedException {
+        if (client != null) {
+            client.close();
+            client = null;
+        }
+    }
+
     abstract void onStartTransaction(String transactionId, String participantId);
 
     @Override
@@ -2,11 +2,34 @@ package ds.tutorials.synchronization;
 
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
 
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class DistributedTxCoordinator extends DistributedTx{
+    public static final long DEFAULT_VOTE_TIMEOUT_MILLIS = 2000;
+    // Commit records are kept this long for participants that missed the outcome
+    public static final long DECISION_RETENTION_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private String transactionId;
+    // Children seen by the last vote count, so the transaction can be removed in one round trip
+    private volatile Collection<String> lastSeenChildren = Collections.emptyList();
+    private volatile int lastSeenParticipants = 0;
+    private long lastPrunedAt = System.currentTimeMillis();
 
     public DistributedTxCoordinator(DistributedTxListener listener) {
         super(listener);
@@ -15,43 +38,122 @@ public class DistributedTxCoordinator extends DistributedTx{
     @Override
     void onStartTransaction(String transactionId, String participantId) {
         try {
-            currentTransaction = "/" + transactionId;
-            client.createNode(currentTransaction, true, CreateMode.PERSISTENT, "".getBytes(StandardCharsets.UTF_8));
+            this.transactionId = transactionId;
+            currentTransaction = transactionPath(transactionId);
+            byte[] empty = "".getBytes(StandardCharsets.UTF_8);
+            client.multi(Arrays.asList(
+                    Op.create(currentTransaction, empty, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT),
+                    Op.create(currentTransaction + "/" + COORDINATOR_MARKER, empty, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                            CreateMode.EPHEMERAL)));
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    // Decides on the votes of every participant that has joined, waiting up to the default timeout
+    // for those that have joined but not yet voted
     public boolean perform() throws KeeperException, InterruptedException {
-        List<String> childrenNodePaths = client.getChildrenNodePaths(currentTransaction);
-        boolean result = true;
-        byte[] data;
-        System.out.println("Child count :" + childrenNodePaths.size());
-        for (String path : childrenNodePaths) {
-            path = currentTransaction + "/" + path;
-            System.out.println("Checking path :" + path);
-            data = client.getData(path, false);
-            String dataString = new String(data);
-            if (!VOTE_COMMIT.equals(dataString)) {
-                System.out.println("Child " + path + " caused the transaction to abort. Sending GLOBAL_ABORT");
-                sendGlobalAbort();
-                result = false;
-            }
+        return perform(0, DEFAULT_VOTE_TIMEOUT_MILLIS);
+    }
+
+    // Commits only if at least expectedVotes participants, and every participant that joined,
+    // voted to commit before the timeout. Anything else - an abort vote, a missing vote, an error
+    // while counting - aborts.
+    public boolean perform(int expectedVotes, long timeoutMillis) throws KeeperException, InterruptedException {
+        boolean result;
+        CompletableFuture<Boolean> votes = collectVotes(expectedVotes);
+        try {
+            result = votes.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            System.out.println("Timed out waiting for votes on " + currentTransaction + ". Sending GLOBAL_ABORT");
+            result = false;
+        } catch (ExecutionException e) {
+            System.out.println("Failed to count votes on " + currentTransaction + ": " + e.getCause().getMessage()
+                    + ". Sending GLOBAL_ABORT");
+            result = false;
+        }
+        // Stops any recount still triggered by a watch
+        votes.complete(false);
+        if (result) {
+            System.out.println("All nodes are okay to commit the transaction. Sending GLOBAL_COMMIT");
+            sendGlobalCommit();
+        } else {
+            sendGlobalAbort();
         }
-        System.out.println("All nodes are okay to commit the transaction. Sending GLOBAL_COMMIT");
-        sendGlobalCommit();
         reset();
         return result;
     }
 
+    // Recounts whenever a participant joins, leaves or votes; the watches replace polling
+    private CompletableFuture<Boolean> collectVotes(int expectedVotes) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        String transaction = currentTransaction;
+        Watcher recount = new Watcher() {
+            @Override
+            public void process(WatchedEvent event) {
+                if (event.getType() != Event.EventType.None) {
+                    countVotes(transaction, expectedVotes, this, result);
+                }
+            }
+        };
+        countVotes(transaction, expectedVotes, recount, result);
+        return result;
+    }
+
+    private void countVotes(String transaction, int expectedVotes, Watcher recount, CompletableFuture<Boolean> result) {
+        if (result.isDone()) {
+            return;
+        }
+        client.getChildrenDataAsync(transaction, recount).whenComplete((children, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+                return;
+            }
+            int votedCommit = 0;
+            int participants = 0;
+            lastSeenChildren = new ArrayList<>(children.keySet());
+            lastSeenParticipants = children.size() - (children.containsKey(COORDINATOR_MARKER) ? 1 : 0);
+            for (Map.Entry<String, byte[]> child : children.entrySet()) {
+                if (COORDINATOR_MARKER.equals(child.getKey())) {
+                    continue;
+                }
+                participants++;
+                String vote = new String(child.getValue(), StandardCharsets.UTF_8);
+                if (VOTE_ABORT.equals(vote)) {
+                    System.out.println("Child " + transaction + "/" + child.getKey()
+                            + " caused the transaction to abort. Sending GLOBAL_ABORT");
+                    result.complete(false);
+                    return;
+                }
+                if (VOTE_COMMIT.equals(vote)) {
+                    votedCommit++;
+                }
+            }
+            if (votedCommit == participants && votedCommit >= expectedVotes) {
+                System.out.println("Child count :" + participants);
+                result.complete(true);
+            }
+        });
+    }
+
+    // The commit record and the outcome are written in one transaction, so a commit is never
+    // announced without its record. With no participants nobody can be in doubt, so no record.
     public void sendGlobalCommit() throws KeeperException, InterruptedException {
         if (currentTransaction != null) {
             System.out.println("Sending global commit for " + currentTransaction);
-            client.write(currentTransaction, DistributedTxCoordinator.GLOBAL_COMMIT.getBytes(StandardCharsets.UTF_8));
+            byte[] commit = DistributedTxCoordinator.GLOBAL_COMMIT.getBytes(StandardCharsets.UTF_8);
+            if (lastSeenParticipants > 0) {
+                client.multi(Arrays.asList(
+                        Op.create(decisionPath(transactionId), commit, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT),
+                        Op.setData(currentTransaction, commit, -1)));
+            } else {
+                client.write(currentTransaction, commit);
+            }
             listener.onGlobalCommit();
         }
     }
 
+    // Presumed abort: nothing is recorded, the outcome is only announced to waiting participants
     public void sendGlobalAbort() throws KeeperException, InterruptedException {
         if (currentTransaction != null) {
             System.out.println("Sending global abort for " + currentTransaction);
@@ -61,7 +163,53 @@ public class DistributedTxCoordinator extends DistributedTx{
     }
 
     private void reset() throws KeeperException, InterruptedException {
-        client.forceDelete(currentTransaction);
+        client.deleteWithChildren(currentTransaction, lastSeenChildren);
         currentTransaction = null;
+        transactionId = null;
+        lastSeenChildren = Collections.emptyList();
+        lastSeenParticipants = 0;
+        if (System.currentTimeMillis() - lastPrunedAt > DECISION_RETENTION_MILLIS / 10) {
+            pruneDecisions();
+        }
+    }
+
+    // Settles transactions whose coordinator died mid-protocol, which is every transaction without
+    // a live coordinator marker: committed ones are just removed, the rest are aborted. Returns the
+    // number of transactions settled.
+    public int recover() throws IOException, KeeperException, InterruptedException {
+        connect();
+        int settled = 0;
+        for (String transaction : client.getChildrenNodePaths(TRANSACTIONS_ROOT)) {
+            String path = transactionPath(transaction);
+            try {
+                if (client.getChildrenNodePaths(path).contains(COORDINATOR_MARKER)) {
+                    continue;
+                }
+                String outcome = new String(client.getData(path, false), StandardCharsets.UTF_8);
+                if (!GLOBAL_COMMIT.equals(outcome)) {
+                    System.out.println("Aborting in-doubt transaction " + path);
+                    client.write(path, GLOBAL_ABORT.getBytes(StandardCharsets.UTF_8));
+                }
+                client.forceDelete(path);
+                settled++;
+            } catch (KeeperException.NoNodeException e) {
+                // Settled by someone else meanwhile
+            }
+        }
+        pruneDecisions();
+        return settled;
+    }
+
+    // Drops commit records past their retention
+    private void pruneDecisions() throws KeeperException, InterruptedException {
+        lastPrunedAt = System.currentTimeMillis();
+        long expiredBefore = lastPrunedAt - DECISION_RETENTION_MILLIS;
+        for (String decision : client.getChildrenNodePaths(DECISIONS_ROOT)) {
+            String path = DECISIONS_ROOT + "/" + decision;
+            long created = client.getCreationTime(path);
+            if (created >= 0 && created < expiredBefore) {
+                client.deleteAsync(path);
+            }
+        }
     }
 }
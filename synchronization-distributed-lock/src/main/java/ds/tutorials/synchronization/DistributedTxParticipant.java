@@ -1,17 +1,40 @@
 package ds.tutorials.synchronization;
 
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class DistributedTxParticipant extends DistributedTx implements Watcher {
     private static final String PARTICIPANT_PREFIX = "/txp_";
+    public static final long DEFAULT_DECISION_TIMEOUT_MILLIS = 5000;
+
+    // Timeout checks for every participant in the process
+    private static final ScheduledExecutorService timeouts = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "tx-participant-timeouts");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final long decisionTimeoutMillis;
+    // Guarded by this
+    private String transactionId;
     private String transactionRoot;
 
     public DistributedTxParticipant(DistributedTxListener listener) {
+        this(listener, DEFAULT_DECISION_TIMEOUT_MILLIS);
+    }
+
+    // How long to wait for the outcome after voting to commit before asking whether the
+    // coordinator is still there
+    public DistributedTxParticipant(DistributedTxListener listener, long decisionTimeoutMillis) {
         super(listener);
+        this.decisionTimeoutMillis = decisionTimeoutMillis;
     }
 
     public void voteCommit() {
@@ -19,6 +42,7 @@ public class DistributedTxParticipant extends DistributedTx implements Watcher {
             if (currentTransaction != null) {
                 System.out.println("Voting to commit the transaction " + currentTransaction);
                 client.write(currentTransaction, DistributedTxCoordinator.VOTE_COMMIT.getBytes(StandardCharsets.UTF_8));
+                scheduleTimeout(transactionId);
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -35,52 +59,116 @@ public class DistributedTxParticipant extends DistributedTx implements Watcher {
         }
     }
 
-    private void rest() {
+    private synchronized void rest() {
         currentTransaction = null;
         transactionRoot = null;
+        transactionId = null;
     }
 
     @Override
     void onStartTransaction(String transactionId, String participantId) {
         try {
-            transactionRoot = "/" + transactionId;
-            currentTransaction = transactionRoot + PARTICIPANT_PREFIX + participantId;
+            synchronized (this) {
+                this.transactionId = transactionId;
+                transactionRoot = transactionPath(transactionId);
+                currentTransaction = transactionRoot + PARTICIPANT_PREFIX + participantId;
+            }
             client.createNode(currentTransaction, true, CreateMode.EPHEMERAL, "".getBytes(StandardCharsets.UTF_8));
-            client.addWatch(transactionRoot);
+            if (!client.addWatch(transactionRoot)) {
+                // Already decided and cleaned up
+                resolve(transactionId);
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    private void handleRootDataChange() {
+    private void handleRootDataChange(String transactionId, String root) {
         try {
-            byte[] data = client.getData(transactionRoot, true);
-            String dataString = new String(data);
+            byte[] data = client.getData(root, true);
+            String dataString = new String(data, StandardCharsets.UTF_8);
             if (DistributedTxCoordinator.GLOBAL_COMMIT.equals(dataString)) {
-                listener.onGlobalCommit();
+                finish(transactionId, true);
             } else if (DistributedTxCoordinator.GLOBAL_ABORT.equals(dataString)) {
-                listener.onGlobalAbort();
+                finish(transactionId, false);
             } else {
                 System.out.println("Unknown data change in the root : " + dataString);
             }
-        }
-        catch (Exception e) {
+        } catch (KeeperException.NoNodeException e) {
+            // Removed right after the outcome was written
+            resolve(transactionId);
+        } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    // Works out the outcome once the transaction node is gone or the coordinator is silent:
+    // a commit record means commit; no record and no live coordinator means abort (presumed);
+    // otherwise the coordinator is still deciding and we keep waiting.
+    private void resolve(String transactionId) {
+        try {
+            if (client.CheckExists(decisionPath(transactionId))) {
+                finish(transactionId, true);
+                return;
+            }
+            String root = transactionPath(transactionId);
+            if (!client.CheckExists(root + "/" + COORDINATOR_MARKER)) {
+                // Recheck the record: the coordinator may have committed and cleaned up in between
+                finish(transactionId, client.CheckExists(decisionPath(transactionId)));
+                return;
+            }
+            System.out.println("Transaction " + root + " is still undecided, waiting for its coordinator");
+            scheduleTimeout(transactionId);
+        } catch (Exception e) {
+            System.err.println("Failed to resolve transaction " + transactionId + ": " + e.getMessage());
+            scheduleTimeout(transactionId);
+        }
+    }
+
+    private void scheduleTimeout(String transactionId) {
+        timeouts.schedule(() -> {
+            if (isCurrent(transactionId)) {
+                resolve(transactionId);
+            }
+        }, decisionTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized boolean isCurrent(String transactionId) {
+        return transactionId != null && transactionId.equals(this.transactionId);
+    }
+
+    // Tells the listener once per transaction, whichever path learns the outcome first
+    private void finish(String transactionId, boolean commit) {
+        synchronized (this) {
+            if (!isCurrent(transactionId)) {
+                return;
+            }
+            rest();
+        }
+        if (commit) {
+            listener.onGlobalCommit();
+        } else {
+            listener.onGlobalAbort();
+        }
+    }
+
     @Override
     public void process(WatchedEvent event) {
         Event.EventType type = event.getType();
+        String transactionId;
+        String root;
+        synchronized (this) {
+            transactionId = this.transactionId;
+            root = transactionRoot;
+        }
+        if (root == null || !root.equals(event.getPath())) {
+            return;
+        }
         if (Event.EventType.NodeDataChanged.equals(type)){
-            if (transactionRoot != null && event.getPath().equals(transactionRoot)){
-                handleRootDataChange();
-            }
+            handleRootDataChange(transactionId, root);
         }
         if (Event.EventType.NodeDeleted.equals(type)){
-            if (transactionRoot != null && event.getPath().equals(transactionRoot)){
-                rest();
-            }
+            resolve(transactionId);
         }
     }
 }
@@ -5,21 +5,41 @@ import org.apache.zookeeper.data.Stat;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 
 public class ZooKeeperClient {
+    // Width of the counter ZooKeeper appends to sequential node names
+    private static final int SEQUENCE_DIGITS = 10;
 
-    private ZooKeeper zooKeeper;
+    private final ZooKeeperSessions.Session session;
+    // Gets the session's connection events and this client's node watches
+    private final Watcher watcher;
+    private boolean closed = false;
 
+    // Shares the process-wide session for this address, see ZooKeeperSessions
     public ZooKeeperClient(String zooKeeperUrl, int
             sessionTimeout, Watcher watcher) throws IOException {
+        this.watcher = watcher;
+        session = ZooKeeperSessions.acquire(zooKeeperUrl, sessionTimeout);
+        session.addListener(watcher);
+    }
 
-        zooKeeper = new ZooKeeper(zooKeeperUrl, sessionTimeout, watcher);
+    // The current handle, which changes if the session expires
+    private ZooKeeper zooKeeper() {
+        return session.get();
     }
 
     public String createNode(String path, boolean shouldWatch, CreateMode mode, byte[] data)
             throws KeeperException, InterruptedException {
-        String createdPath = zooKeeper.create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, mode);
+        String createdPath = zooKeeper().create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, mode);
         return createdPath;
     }
 
@@ -30,41 +50,279 @@ public class ZooKeeperClient {
 
     public boolean CheckExists(String path) throws
             KeeperException, InterruptedException {
-        Stat nodeStat = zooKeeper.exists(path, false);
+        Stat nodeStat = zooKeeper().exists(path, false);
         return (nodeStat != null);
     }
 
     public void delete(String path) throws
             KeeperException, InterruptedException {
-        zooKeeper.delete(path, -1);
+        zooKeeper().delete(path, -1);
     }
 
+    // Lists the tree one level at a time, with every node of a level listed in parallel, then
+    // deletes it in a single transaction. Retried if a node is added in the meantime.
     public void forceDelete(String path) throws
             KeeperException, InterruptedException {
-        List<String> children = zooKeeper.getChildren(path, false);
+        while (true) {
+            List<String> tree = new ArrayList<>();
+            List<String> level = new ArrayList<>();
+            level.add(path);
+            try {
+                while (!level.isEmpty()) {
+                    tree.addAll(level);
+                    level = join(listChildPathsAsync(level));
+                }
+            } catch (KeeperException.NoNodeException e) {
+                // Part of the tree went away while listing; start over unless it is all gone
+                if (!CheckExists(path)) {
+                    return;
+                }
+                continue;
+            }
+            List<Op> deletes = new ArrayList<>();
+            for (int i = tree.size() - 1; i >= 0; i--) {
+                deletes.add(Op.delete(tree.get(i), -1));
+            }
+            try {
+                multi(deletes);
+                return;
+            } catch (KeeperException.NotEmptyException | KeeperException.NoNodeException e) {
+                if (!CheckExists(path)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Deletes a node along with children already known to the caller, in one round trip
+    public void deleteWithChildren(String path, Collection<String> children) throws
+            KeeperException, InterruptedException {
+        List<Op> deletes = new ArrayList<>();
         for (String child : children) {
-            forceDelete(path + "/" + child);
+            deletes.add(Op.delete(path + "/" + child, -1));
+        }
+        deletes.add(Op.delete(path, -1));
+        try {
+            multi(deletes);
+        } catch (KeeperException.NotEmptyException | KeeperException.NoNodeException e) {
+            // The children changed since they were listed
+            forceDelete(path);
         }
-        delete(path);
+    }
+
+    // Applies every operation or none of them
+    public List<OpResult> multi(Iterable<Op> ops) throws
+            KeeperException, InterruptedException {
+        return zooKeeper().multi(ops);
     }
 
     public List<String> getChildrenNodePaths(String root)
             throws KeeperException, InterruptedException {
-        return zooKeeper.getChildren(root, false);
+        return zooKeeper().getChildren(root, false);
     }
 
-    public void addWatch(String path) throws
+    // Returns whether the node exists; this client's watcher hears when it is created, changed or deleted
+    public boolean addWatch(String path) throws
             KeeperException, InterruptedException {
-        zooKeeper.exists(path, true);
+        return zooKeeper().exists(path, watcher) != null;
     }
 
     public byte[] getData(String path, boolean watch) throws
             KeeperException, InterruptedException {
-        return zooKeeper.getData(path, watch, null);
+        return zooKeeper().getData(path, watch ? watcher : null, null);
+    }
+
+    // Creation time in milliseconds since the epoch, or -1 if the node doesn't exist
+    public long getCreationTime(String path) throws
+            KeeperException, InterruptedException {
+        Stat nodeStat = zooKeeper().exists(path, false);
+        return nodeStat == null ? -1 : nodeStat.getCtime();
+    }
+
+    public synchronized void close() throws InterruptedException {
+        if (!closed) {
+            closed = true;
+            session.removeListener(watcher);
+            ZooKeeperSessions.release(session);
+        }
     }
 
     public void write(String path, byte[] data) throws
             KeeperException, InterruptedException {
-        zooKeeper.setData(path, data, -1);
+        zooKeeper().setData(path, data, -1);
+    }
+
+    // Sequential nodes created under one parent share its counter whatever their prefix, so
+    // ordering by the counter alone gives creation order across prefixes
+    public static void sortBySequence(List<String> children) {
+        children.sort(Comparator.comparing(name -> name.substring(name.length() - SEQUENCE_DIGITS)));
+    }
+
+    // Asynchronous variants: they complete on the ZooKeeper event thread and never block the caller
+    public CompletableFuture<String> createNodeAsync(String path, CreateMode mode, byte[] data) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        zooKeeper().create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, mode, (rc, requestedPath, ctx, name) -> {
+            if (rc == KeeperException.Code.OK.intValue()) {
+                result.complete(name);
+            } else {
+                result.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), requestedPath));
+            }
+        }, null);
+        return result;
+    }
+
+    public CompletableFuture<List<String>> getChildrenAsync(String root) {
+        return getChildrenAsync(root, null);
+    }
+
+    // The watcher, if given, fires once when the set of children changes
+    public CompletableFuture<List<String>> getChildrenAsync(String root, Watcher watcher) {
+        CompletableFuture<List<String>> result = new CompletableFuture<>();
+        zooKeeper().getChildren(root, watcher, (AsyncCallback.ChildrenCallback) (rc, path, ctx, children) -> {
+            if (rc == KeeperException.Code.OK.intValue()) {
+                result.complete(children);
+            } else {
+                result.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), path));
+            }
+        }, null);
+        return result;
+    }
+
+    // Completes with whether the node exists; the watcher fires when it changes
+    public CompletableFuture<Boolean> existsAsync(String path, Watcher watcher) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        zooKeeper().exists(path, watcher, (rc, requestedPath, ctx, stat) -> {
+            if (rc == KeeperException.Code.OK.intValue()) {
+                result.complete(true);
+            } else if (rc == KeeperException.Code.NONODE.intValue()) {
+                result.complete(false);
+            } else {
+                result.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), requestedPath));
+            }
+        }, null);
+        return result;
+    }
+
+    // Drops a watch set by existsAsync; completes normally if it has already fired
+    public CompletableFuture<Void> removeWatchAsync(String path, Watcher watcher) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        zooKeeper().removeWatches(path, watcher, Watcher.WatcherType.Data, true, (rc, requestedPath, ctx) -> {
+            if (rc == KeeperException.Code.OK.intValue() || rc == KeeperException.Code.NOWATCHER.intValue()) {
+                result.complete(null);
+            } else {
+                result.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), requestedPath));
+            }
+        }, null);
+        return result;
+    }
+
+    public CompletableFuture<byte[]> getDataAsync(String path) {
+        return getDataAsync(path, null);
+    }
+
+    // The watcher, if given, fires once when the node changes or is deleted
+    public CompletableFuture<byte[]> getDataAsync(String path, Watcher watcher) {
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        zooKeeper().getData(path, watcher, (rc, requestedPath, ctx, data, stat) -> {
+            if (rc == KeeperException.Code.OK.intValue()) {
+                result.complete(data);
+            } else {
+                result.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), requestedPath));
+            }
+        }, null);
+        return result;
+    }
+
+    // Reads every child's data in one pass: the reads are sent together after the listing rather
+    // than one after another, so the cost is two round trips whatever the number of children.
+    // Children deleted in between are left out.
+    public CompletableFuture<Map<String, byte[]>> getChildrenDataAsync(String root) {
+        return getChildrenDataAsync(root, null);
+    }
+
+    // As above, leaving the watcher on the listing and on every child read
+    public CompletableFuture<Map<String, byte[]>> getChildrenDataAsync(String root, Watcher watcher) {
+        return getChildrenAsync(root, watcher).thenCompose(children -> {
+            List<CompletableFuture<byte[]>> reads = new ArrayList<>();
+            for (String child : children) {
+                reads.add(getDataAsync(root + "/" + child, watcher).handle((value, error) -> {
+                    if (error != null && !(error instanceof KeeperException.NoNodeException)) {
+                        throw new CompletionException(error);
+                    }
+                    return value;
+                }));
+            }
+            return CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+                Map<String, byte[]> data = new LinkedHashMap<>();
+                for (int i = 0; i < children.size(); i++) {
+                    byte[] value = reads.get(i).join();
+                    if (value != null) {
+                        data.put(children.get(i), value);
+                    }
+                }
+                return data;
+            });
+        });
+    }
+
+    public CompletableFuture<List<OpResult>> multiAsync(Iterable<Op> ops) {
+        CompletableFuture<List<OpResult>> result = new CompletableFuture<>();
+        zooKeeper().multi(ops, (rc, path, ctx, opResults) -> {
+            if (rc == KeeperException.Code.OK.intValue()) {
+                result.complete(opResults);
+            } else {
+                result.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), path));
+            }
+        }, null);
+        return result;
+    }
+
+    public CompletableFuture<Void> deleteAsync(String path) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        zooKeeper().delete(path, -1, (rc, requestedPath, ctx) -> {
+            if (rc == KeeperException.Code.OK.intValue() || rc == KeeperException.Code.NONODE.intValue()) {
+                result.complete(null);
+            } else {
+                result.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), requestedPath));
+            }
+        }, null);
+        return result;
+    }
+
+    // Child paths of all the given nodes, listed in parallel
+    private CompletableFuture<List<String>> listChildPathsAsync(List<String> parents) {
+        List<CompletableFuture<List<String>>> listings = new ArrayList<>();
+        for (String parent : parents) {
+            listings.add(getChildrenAsync(parent).thenApply(children -> {
+                List<String> paths = new ArrayList<>();
+                for (String child : children) {
+                    paths.add(parent + "/" + child);
+                }
+                return paths;
+            }));
+        }
+        return CompletableFuture.allOf(listings.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            List<String> paths = new ArrayList<>();
+            for (CompletableFuture<List<String>> listing : listings) {
+                paths.addAll(listing.join());
+            }
+            return paths;
+        });
+    }
+
+    // Waits for an asynchronous call and rethrows its failure as the synchronous call would
+    static <T> T join(CompletableFuture<T> future) throws KeeperException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof KeeperException) {
+                throw (KeeperException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
     }
 }
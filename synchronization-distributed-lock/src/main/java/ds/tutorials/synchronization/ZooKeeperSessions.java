@@ -0,0 +1,155 @@
+package ds.tutorials.synchronization;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+// One ZooKeeper session per ensemble address for the whole process, shared by every lock,
+// transaction and election object instead of each opening its own. Sessions are reference
+// counted and closed when the last ZooKeeperClient using them closes. Connection state events
+// are passed on to every client's watcher; node watches are registered per client and go
+// straight to that client. An expired session is replaced by a new one under the same handle,
+// and clients are told through the Expired event so they can recreate their ephemeral nodes.
+public final class ZooKeeperSessions {
+    // Guarded by ZooKeeperSessions.class
+    private static final Map<String, Session> sessions = new HashMap<>();
+
+    private static final AtomicLong handshakes = new AtomicLong();
+    private static final AtomicLong handshakeNanos = new AtomicLong();
+    private static final AtomicLong expirations = new AtomicLong();
+
+    private ZooKeeperSessions() {
+    }
+
+    public static final class Session implements Watcher {
+        private final String url;
+        private final int sessionTimeout;
+        private final List<Watcher> listeners = new CopyOnWriteArrayList<>();
+        private volatile ZooKeeper zooKeeper;
+        private volatile boolean connected = false;
+        private volatile long connectingSince;
+        // Guarded by ZooKeeperSessions.class
+        private int references = 0;
+
+        private Session(String url, int sessionTimeout) {
+            this.url = url;
+            this.sessionTimeout = sessionTimeout;
+        }
+
+        private void open() throws IOException {
+            connectingSince = System.nanoTime();
+            zooKeeper = new ZooKeeper(url, sessionTimeout, this);
+        }
+
+        ZooKeeper get() {
+            return zooKeeper;
+        }
+
+        void addListener(Watcher listener) {
+            listeners.add(listener);
+            // Already connected, so the listener would never see the event it waits for
+            if (connected) {
+                listener.process(new WatchedEvent(Event.EventType.None, Event.KeeperState.SyncConnected, null));
+            }
+        }
+
+        void removeListener(Watcher listener) {
+            listeners.remove(listener);
+        }
+
+        @Override
+        public void process(WatchedEvent event) {
+            if (event.getType() == Event.EventType.None) {
+                switch (event.getState()) {
+                    case SyncConnected:
+                        if (!connected && connectingSince != 0) {
+                            handshakes.incrementAndGet();
+                            handshakeNanos.addAndGet(System.nanoTime() - connectingSince);
+                            connectingSince = 0;
+                        }
+                        connected = true;
+                        break;
+                    case Disconnected:
+                        // The client library reconnects on its own and keeps the session
+                        connected = false;
+                        break;
+                    case Expired:
+                        connected = false;
+                        expirations.incrementAndGet();
+                        System.err.println("ZooKeeper session to " + url + " expired, opening a new one");
+                        try {
+                            open();
+                        } catch (IOException e) {
+                            System.err.println("Failed to reopen ZooKeeper session: " + e.getMessage());
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            for (Watcher listener : listeners) {
+                listener.process(event);
+            }
+        }
+    }
+
+    // The first caller for an address decides the session timeout
+    static synchronized Session acquire(String url, int sessionTimeout) throws IOException {
+        Session session = sessions.get(url);
+        if (session == null) {
+            session = new Session(url, sessionTimeout);
+            session.open();
+            sessions.put(url, session);
+        }
+        session.references++;
+        return session;
+    }
+
+    static void release(Session session) throws InterruptedException {
+        synchronized (ZooKeeperSessions.class) {
+            if (--session.references > 0) {
+                return;
+            }
+            sessions.remove(session.url);
+        }
+        session.zooKeeper.close();
+    }
+
+    public static synchronized int getOpenSessions() {
+        return sessions.size();
+    }
+
+    public static synchronized int getReferences() {
+        int references = 0;
+        for (Session session : sessions.values()) {
+            references += session.references;
+        }
+        return references;
+    }
+
+    // Sessions established so far, including replacements for expired ones
+    public static long getHandshakes() {
+        return handshakes.get();
+    }
+
+    public static double getAverageHandshakeMillis() {
+        long count = handshakes.get();
+        return count == 0 ? 0 : handshakeNanos.get() / 1e6 / count;
+    }
+
+    public static long getExpirations() {
+        return expirations.get();
+    }
+
+    public static String describe() {
+        return String.format("sessions=%d references=%d handshakes=%d avgHandshakeMs=%.2f expirations=%d",
+                getOpenSessions(), getReferences(), getHandshakes(), getAverageHandshakeMillis(), getExpirations());
+    }
+}